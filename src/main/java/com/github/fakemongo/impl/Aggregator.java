@@ -1,20 +1,26 @@
 package com.github.fakemongo.impl;
 
+import com.github.fakemongo.impl.aggregation.DiskUse;
+import com.github.fakemongo.impl.aggregation.GeoNear;
 import com.github.fakemongo.impl.aggregation.Group;
 import com.github.fakemongo.impl.aggregation.Limit;
+import com.github.fakemongo.impl.aggregation.Lookup;
 import com.github.fakemongo.impl.aggregation.Match;
+import com.github.fakemongo.impl.aggregation.Out;
 import com.github.fakemongo.impl.aggregation.PipelineKeyword;
 import com.github.fakemongo.impl.aggregation.Project;
 import com.github.fakemongo.impl.aggregation.Skip;
 import com.github.fakemongo.impl.aggregation.Sort;
 import com.github.fakemongo.impl.aggregation.Unwind;
-import com.mongodb.DBCollection;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.FongoDB;
 import com.mongodb.FongoDBCollection;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.UUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,27 +33,77 @@ public class Aggregator {
   private final FongoDB fongoDB;
   private final FongoDBCollection fongoDBCollection;
   private final List<DBObject> pipeline;
-  private static final List<PipelineKeyword> keywords = Arrays.asList(Match.INSTANCE, Project.INSTANCE, Group.INSTANCE, Sort.INSTANCE, Limit.INSTANCE, Skip.INSTANCE, Unwind.INSTANCE);
+  private final boolean allowDiskUse;
+  private static final List<PipelineKeyword> keywords = Arrays.asList(Match.INSTANCE, Project.INSTANCE, Group.INSTANCE, Sort.INSTANCE, Limit.INSTANCE, Skip.INSTANCE, Unwind.INSTANCE, Lookup.INSTANCE, Out.INSTANCE, GeoNear.INSTANCE);
 
   public Aggregator(FongoDB fongoDB, FongoDBCollection coll, List<DBObject> pipeline) {
+    this(fongoDB, coll, pipeline, false);
+  }
+
+  /**
+   * @param allowDiskUse true to let $sort and $group spill to temporary files when they exceed
+   *                     {@link DiskUse#getDefaultMemoryLimit()}.
+   */
+  public Aggregator(FongoDB fongoDB, FongoDBCollection coll, List<DBObject> pipeline, boolean allowDiskUse) {
     this.fongoDB = fongoDB;
     this.fongoDBCollection = coll;
     this.pipeline = pipeline;
+    this.allowDiskUse = allowDiskUse;
   }
 
   /**
+   * The documents are pulled through the stages : no temporary collection is created between them.
+   *
    * @return null if error.
    */
   public List<DBObject> computeResult() {
-    DBCollection coll = fongoDB.createCollection(UUID.randomUUID().toString(), null);
-    try {
-      coll.insert(this.fongoDBCollection.find().toArray());
+    Iterator<DBObject> documents = computeIterator();
+    List<DBObject> result = new ArrayList<DBObject>();
+    while (documents.hasNext()) {
+      result.add(documents.next());
+    }
+    LOG.debug("computeResult() : {}", result);
+    return result;
+  }
 
-      for (DBObject object : pipeline) {
+  /**
+   * Build the pipeline : the documents are computed when they are read from the last stage.
+   *
+   * @return the documents of the last stage.
+   */
+  public Iterator<DBObject> computeIterator() {
+    DBCursor cursor = this.fongoDBCollection.find();
+    int first = pushDown(cursor);
+
+    DiskUse diskUse = allowDiskUse ? new DiskUse() : null;
+    try {
+      Iterator<DBObject> documents = cursor;
+      for (int stage = first; stage < pipeline.size(); stage++) {
+        DBObject object = pipeline.get(stage);
+        int topK = topK(stage);
+        if (topK >= 0) {
+          documents = Sort.INSTANCE.applyTopK(documents, object, topK);
+          continue;
+        }
+        if (GeoNear.INSTANCE.canApply(object) && stage != 0) {
+          fongoDB.notOkErrorResult(28837, "exception: $geoNear is only valid as the first stage in a pipeline.").throwOnError();
+        }
+        if (Out.INSTANCE.canApply(object) && stage != pipeline.size() - 1) {
+          fongoDB.notOkErrorResult(16991, "exception: $out can only be the final stage in the pipeline").throwOnError();
+        }
+        if (isStage(stage, Unwind.INSTANCE) && (isStage(stage + 1, Group.INSTANCE) || isStage(stage + 1, Project.INSTANCE))) {
+          // Fused with the next stage : the unwound documents are not copied.
+          documents = Unwind.INSTANCE.applyView(this.fongoDBCollection, documents, object);
+          continue;
+        }
+        if (isStage(stage, Group.INSTANCE)) {
+          documents = Group.INSTANCE.applyOrdered(this.fongoDBCollection, documents, object, diskUse, inputOrder(stage));
+          continue;
+        }
         boolean found = false;
         for (PipelineKeyword keyword : keywords) {
           if (keyword.canApply(object)) {
-            coll = keyword.apply(coll, object);
+            documents = keyword.apply(this.fongoDBCollection, documents, object, diskUse);
             found = true;
             break;
           }
@@ -57,12 +113,125 @@ public class Aggregator {
         }
         // Not found : com.mongodb.CommandFailureException: { "serverUsed" : "localhost/127.0.0.1:27017" , "errmsg" : "exception: Unrecognized pipeline stage name: '_id'" , "code" : 16436 , "ok" : 0.0}
       }
+      return diskUse == null ? documents : diskUse.closeAtEnd(documents);
+    } catch (RuntimeException e) {
+      if (diskUse != null) {
+        diskUse.close();
+      }
+      throw e;
+    }
+  }
 
-      List<DBObject> result = coll.find().toArray();
-      LOG.debug("computeResult() : {}", result);
-      return result;
-    } finally {
-      coll.drop();
+  /**
+   * Describe the execution of the pipeline, for an aggregation with "explain" : the stages executed as a query on the
+   * collection are in "$cursor", unless the documents are read by a $geoNear.
+   *
+   * @return the stages.
+   */
+  public List<DBObject> explain() {
+    DBCursor cursor = this.fongoDBCollection.find();
+    int first = pushDown(cursor);
+    List<DBObject> stages = new ArrayList<DBObject>();
+    DBObject query = new BasicDBObject("query", cursor.getQuery());
+    for (int stage = 0; stage < first; stage++) {
+      if (!isStage(stage, Match.INSTANCE)) {
+        query.putAll(Util.clone(pipeline.get(stage)));
+      }
+    }
+    if (!isStage(0, GeoNear.INSTANCE)) {
+      stages.add(new BasicDBObject("$cursor", query));
+    }
+    for (int stage = first; stage < pipeline.size(); stage++) {
+      DBObject object = pipeline.get(stage);
+      DBObject explained = object;
+      for (PipelineKeyword keyword : keywords) {
+        if (keyword.canApply(object)) {
+          explained = keyword.explain(this.fongoDBCollection, object);
+          break;
+        }
+      }
+      stages.add(explained);
     }
+    return stages;
+  }
+
+  /**
+   * Execute the leading $match, $sort, $skip and $limit stages as a query on the collection : the indexes are used
+   * and only the matching documents enter the pipeline.
+   *
+   * @param cursor cursor on the collection, modified with the stages executed.
+   * @return the number of stages executed by the cursor.
+   */
+  private int pushDown(DBCursor cursor) {
+    int stage = 0;
+    if (isStage(stage, Match.INSTANCE)) {
+      cursor.getQuery().putAll((DBObject) pipeline.get(stage++).get(Match.INSTANCE.getKeyword()));
+    }
+    if (isStage(stage, Sort.INSTANCE)) {
+      cursor.sort((DBObject) pipeline.get(stage++).get(Sort.INSTANCE.getKeyword()));
+    }
+    // A query on one _id ignores the skip of the cursor : $skip and $limit stay in the pipeline.
+    boolean paging = !isIdLookup(cursor.getQuery());
+    if (paging && isStage(stage, Skip.INSTANCE)) {
+      cursor.skip(((Number) pipeline.get(stage++).get(Skip.INSTANCE.getKeyword())).intValue());
+    }
+    if (paging && isStage(stage, Limit.INSTANCE)) {
+      cursor.limit(Limit.INSTANCE.limit(fongoDB, pipeline.get(stage++)));
+    }
+    LOG.debug("pushDown() : {} stages executed by {}", stage, cursor);
+    return stage;
+  }
+
+  private static boolean isIdLookup(DBObject query) {
+    return query.containsField(FongoDBCollection.ID_KEY) && !(query.get(FongoDBCollection.ID_KEY) instanceof DBObject);
+  }
+
+  /**
+   * Coalesce a $sort followed by a $limit, with $skip or $project between them : only the first documents are kept.
+   *
+   * @param stage index of the stage in the pipeline.
+   * @return the number of documents to keep for a $sort, or -1 if all the documents must be sorted.
+   */
+  private int topK(int stage) {
+    if (!isStage(stage, Sort.INSTANCE)) {
+      return -1;
+    }
+    long skip = 0;
+    for (int next = stage + 1; next < pipeline.size(); next++) {
+      if (isStage(next, Skip.INSTANCE)) {
+        skip += ((Number) pipeline.get(next).get(Skip.INSTANCE.getKeyword())).intValue();
+      } else if (isStage(next, Limit.INSTANCE)) {
+        int limit = Limit.INSTANCE.limit(fongoDB, pipeline.get(next));
+        if (skip + limit > Integer.MAX_VALUE) {
+          return -1;
+        }
+        return (int) (skip + limit);
+      } else if (!isStage(next, Project.INSTANCE)) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Order of the documents entering a stage : the last $sort, if only $match, $skip and $limit are between them.
+   *
+   * @param stage index of the stage in the pipeline.
+   * @return the sort, or null if the order is unknown.
+   */
+  private DBObject inputOrder(int stage) {
+    for (int previous = stage - 1; previous >= 0; previous--) {
+      if (isStage(previous, Sort.INSTANCE)) {
+        return (DBObject) pipeline.get(previous).get(Sort.INSTANCE.getKeyword());
+      }
+      if (!isStage(previous, Match.INSTANCE) && !isStage(previous, Skip.INSTANCE) && !isStage(previous, Limit.INSTANCE)) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private boolean isStage(int stage, PipelineKeyword keyword) {
+    return stage < pipeline.size() && keyword.canApply(pipeline.get(stage));
   }
 }
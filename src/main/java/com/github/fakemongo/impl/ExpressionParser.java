@@ -1058,4 +1058,32 @@ public class ExpressionParser {
   public ObjectComparator buildObjectComparator(boolean asc) {
     return new ObjectComparator(asc);
   }
+
+  /**
+   * Build a comparator of documents for a sort specification like <code>{a : 1, "b.c" : -1}</code>.
+   *
+   * @param orderby the sort specification.
+   * @return a comparator ordering the documents like a sort on a cursor.
+   */
+  public Comparator<DBObject> buildDBObjectComparator(final DBObject orderby) {
+    final Set<String> orderbyKeySet = orderby.keySet();
+    return new Comparator<DBObject>() {
+      @Override
+      public int compare(DBObject o1, DBObject o2) {
+        for (String sortKey : orderbyKeySet) {
+          final List<String> path = Util.split(sortKey);
+          int sortDirection = ((Number) orderby.get(sortKey)).intValue();
+
+          List<Object> o1list = getEmbeddedValues(path, o1);
+          List<Object> o2list = getEmbeddedValues(path, o2);
+
+          int compareValue = compareLists(o1list, o2list) * sortDirection;
+          if (compareValue != 0) {
+            return compareValue;
+          }
+        }
+        return 0;
+      }
+    };
+  }
 }
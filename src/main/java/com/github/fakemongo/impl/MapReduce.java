@@ -4,18 +4,25 @@ import com.github.fakemongo.Fongo;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.FongoBulkWriteOperation;
 import com.mongodb.FongoDB;
 import com.mongodb.FongoDBCollection;
-import com.mongodb.util.JSON;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import org.mozilla.javascript.BaseFunction;
 import org.mozilla.javascript.Context;
-import org.mozilla.javascript.NativeArray;
-import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Function;
 import org.mozilla.javascript.RhinoException;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +55,36 @@ public class MapReduce {
 
   private final int limit;
 
+  /**
+   * Minimum number of documents to map-reduce in parallel.
+   */
+  public static final int PARALLEL_THRESHOLD = 10000;
+
+  /**
+   * Number of values emitted for a key before they are reduced.
+   */
+  public static final int DEFAULT_REDUCE_THRESHOLD = 1000;
+
+  /**
+   * Number of results written at once in the output collection.
+   */
+  static final int OUTPUT_BATCH_SIZE = 1000;
+
+  private static volatile int parallelism = Runtime.getRuntime().availableProcessors();
+
+  private static volatile int reduceThreshold = DEFAULT_REDUCE_THRESHOLD;
+
+  /**
+   * Functions of mongod available in the map and reduce functions.
+   */
+  private static final String MONGO_FUNCTIONS = "Array.sum = function(array) {\n" +
+      "    var a = 0;\n" +
+      "    for (var i = 0; i < array.length; i++) {\n" +
+      "        a = a + array[i];\n" +
+      "    }\n" +
+      "    return a;\n" +
+      "};\n";
+
   // http://docs.mongodb.org/manual/reference/method/db.collection.mapReduce/
   private enum Outmode {
     REPLACE {
@@ -58,22 +95,23 @@ public class MapReduce {
       }
 
       @Override
-      public void newResult(DBCollection coll, DBObject result) {
-        coll.insert(result);
+      public void newResults(FongoDBCollection coll, List<DBObject> results) {
+        coll.insert(results);
       }
     },
     MERGE {
       @Override
-      public void newResult(DBCollection coll, DBObject result) {
-        // Upsert == insert the result if not exist.
-        coll.update(new BasicDBObject(FongoDBCollection.ID_KEY, result.get(FongoDBCollection.ID_KEY)), result, true,
-            false);
+      public void newResults(FongoDBCollection coll, List<DBObject> results) {
+        upsert(coll, results);
       }
     },
+    /**
+     * The results already reduced with the documents of the collection are upserted.
+     */
     REDUCE {
       @Override
-      public void newResult(DBCollection coll, DBObject result) {
-        throw new IllegalStateException(); // Todo : recall "reduce function on two values..."
+      public void newResults(FongoDBCollection coll, List<DBObject> results) {
+        upsert(coll, results);
       }
     },
     INLINE {
@@ -84,8 +122,8 @@ public class MapReduce {
       }
 
       @Override
-      public void newResult(DBCollection coll, DBObject result) {
-        coll.insert(result);
+      public void newResults(FongoDBCollection coll, List<DBObject> results) {
+        coll.insert(results);
       }
 
       @Override
@@ -120,7 +158,21 @@ public class MapReduce {
       // Do nothing.
     }
 
-    public abstract void newResult(DBCollection coll, DBObject result);
+    /**
+     * Write a batch of results.
+     */
+    public abstract void newResults(FongoDBCollection coll, List<DBObject> results);
+
+    /**
+     * Upsert == insert the result if not exist, by _id, in one bulk operation.
+     */
+    static void upsert(FongoDBCollection coll, List<DBObject> results) {
+      FongoBulkWriteOperation bulk = coll.initializeUnorderedBulkOperation();
+      for (DBObject result : results) {
+        bulk.find(new BasicDBObject(FongoDBCollection.ID_KEY, result.get(FongoDBCollection.ID_KEY))).upsert().replaceOne(result);
+      }
+      bulk.execute();
+    }
 
     public DBObject createResult(DBCollection coll) {
       DBObject result = new BasicDBObject("collection", coll.getName()).append("db", coll.getDB().getName());
@@ -146,113 +198,335 @@ public class MapReduce {
   }
 
   /**
+   * Number of threads used to map-reduce a large input, 1 to map-reduce sequentially.
+   *
+   * @param parallelism number of threads (default to the number of processors).
+   */
+  public static void setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive : " + parallelism);
+    }
+    MapReduce.parallelism = parallelism;
+  }
+
+  public static int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Number of values emitted for a key before they are reduced during the map : only the reduced value is kept, so the
+   * memory depends on the number of keys, not on the number of values emitted. The reduce function must then accept
+   * its own result as a value, like in mongod.
+   *
+   * @param reduceThreshold at least 2 (default to {@link #DEFAULT_REDUCE_THRESHOLD}).
+   */
+  public static void setReduceThreshold(int reduceThreshold) {
+    if (reduceThreshold < 2) {
+      throw new IllegalArgumentException("reduceThreshold must be at least 2 : " + reduceThreshold);
+    }
+    MapReduce.reduceThreshold = reduceThreshold;
+  }
+
+  public static int getReduceThreshold() {
+    return reduceThreshold;
+  }
+
+  /**
+   * The map and reduce functions are compiled once by thread, the documents are given to the map function without
+   * serialization. A large input is mapped then reduced in parallel, with the same result.
+   *
    * @return null if error.
    */
   public DBObject computeResult() {
     // Replace, merge or reduce ?
     Outmode outmode = Outmode.valueFor(out);
-    DBCollection coll = fongoDB.createCollection(outmode.collectionName(out), null);
+    FongoDBCollection coll = (FongoDBCollection) fongoDB.createCollection(outmode.collectionName(out), null);
     // Mode replace.
     outmode.initCollection(coll);
 
-    // TODO use Compilable ? http://www.jmdoudoux.fr/java/dej/chap-scripting.htm
-    Context cx = Context.enter();
+    Scriptable sharedScope = sharedScope();
+    DBCursor cursor = this.fongoDBCollection.find(query).sort(sort).limit(limit);
+    Iterator<DBObject> input = cursor.iterator();
+    int threads = parallelism;
+    List<DBObject> objects = null;
+    if (threads > 1) {
+      // Only a large input is read in memory for the threads.
+      objects = Parallel.readAhead(input, PARALLEL_THRESHOLD);
+      if (objects.size() < PARALLEL_THRESHOLD) {
+        threads = 1;
+      } else {
+        while (input.hasNext()) {
+          objects.add(input.next());
+        }
+      }
+    }
+
+    Map<Object, List<Object>> emits;
+    List<Object> keys;
+    Object[] values;
+    if (threads > 1) {
+      emits = mapParallel(sharedScope, objects, threads);
+      keys = new ArrayList<Object>(emits.keySet());
+      values = reduceParallel(sharedScope, emits, keys, threads);
+    } else {
+      Worker worker = new Worker(sharedScope);
+      try {
+        worker.map(objects == null ? input : objects.iterator());
+        emits = worker.emits;
+        keys = new ArrayList<Object>(emits.keySet());
+        values = new Object[keys.size()];
+        worker.reduce(emits, keys, 0, keys.size(), values);
+      } finally {
+        worker.close();
+      }
+    }
+
+    Worker outputWorker = outmode == Outmode.REDUCE ? new Worker(sharedScope) : null;
     try {
-      Scriptable scope = cx.initStandardObjects();
-      List<DBObject> objects = this.fongoDBCollection.find(query).sort(sort).limit(limit).toArray();
-      List<String> javascriptFunctions = constructJavascriptFunction(objects);
-      for (String jsFunction : javascriptFunctions) {
-        try {
-          cx.evaluateString(scope, jsFunction, "<map-reduce>", 0, null);
-        } catch (RhinoException e) {
-          LOG.error("Exception running script {}", jsFunction, e);
-          fongoDB.notOkErrorResult(16722, "JavaScript execution failed: " + e.getMessage()).throwOnError();
+      List<DBObject> batch = new ArrayList<DBObject>(OUTPUT_BATCH_SIZE);
+      for (int i = 0; i < values.length; i++) {
+        batch.add(new BasicDBObject(FongoDBCollection.ID_KEY, keys.get(i)).append("value", values[i]));
+        if (batch.size() == OUTPUT_BATCH_SIZE || i == values.length - 1) {
+          if (outputWorker != null) {
+            reduceWithExisting(coll, batch, outputWorker);
+          }
+          outmode.newResults(coll, batch);
+          batch.clear();
         }
       }
+    } finally {
+      if (outputWorker != null) {
+        outputWorker.close();
+      }
+    }
 
+    DBObject result = outmode.createResult(coll);
+    LOG.debug("computeResult() : {}", result);
+    return result;
+  }
 
-      // Get the result into an object.
-      NativeArray outs = (NativeArray) scope.get("$$$fongoOuts$$$", scope);
-      for (int i = 0; i < outs.getLength(); i++) {
-        NativeObject out = (NativeObject) outs.get(i, outs);
-        outmode.newResult(coll, getObject(out));
+  /**
+   * Reduce the results with the documents of the same key already in the output collection, read by batch.
+   */
+  private void reduceWithExisting(FongoDBCollection coll, List<DBObject> batch, Worker worker) {
+    BasicDBList ids = new BasicDBList();
+    for (DBObject result : batch) {
+      ids.add(result.get(FongoDBCollection.ID_KEY));
+    }
+    Map<Object, DBObject> existing = new HashMap<Object, DBObject>();
+    for (DBObject document : coll.find(new BasicDBObject(FongoDBCollection.ID_KEY, new BasicDBObject("$in", ids)))) {
+      existing.put(document.get(FongoDBCollection.ID_KEY), document);
+    }
+    for (DBObject result : batch) {
+      DBObject document = existing.get(result.get(FongoDBCollection.ID_KEY));
+      if (document != null) {
+        result.put("value", worker.reduce(result.get(FongoDBCollection.ID_KEY), document.get("value"), result.get("value")));
       }
+    }
+  }
 
-      DBObject result = outmode.createResult(coll);
-      LOG.debug("computeResult() : {}", result);
-      return result;
+  /**
+   * The standard objects and the functions of mongod, sealed : they are shared by the scopes of all the threads.
+   */
+  private static Scriptable sharedScope() {
+    Context cx = Context.enter();
+    try {
+      ScriptableObject scope = cx.initStandardObjects(null, false);
+      cx.evaluateString(scope, MONGO_FUNCTIONS, "<mongo-functions>", 1, null);
+      for (Object id : scope.getAllIds()) {
+        // Read the lazily loaded constructors before sealing them.
+        Object value = id instanceof String ? ScriptableObject.getProperty(scope, (String) id) : null;
+        if (value instanceof ScriptableObject) {
+          Object prototype = ScriptableObject.getProperty((ScriptableObject) value, "prototype");
+          if (prototype instanceof ScriptableObject) {
+            ((ScriptableObject) prototype).sealObject();
+          }
+          ((ScriptableObject) value).sealObject();
+        }
+      }
+      scope.sealObject();
+      return scope;
     } finally {
-      cx.exit();
+      Context.exit();
     }
   }
 
-  DBObject getObject(NativeObject no) {
-    DBObject ret = new BasicDBObject();
-    Object[] propIds = no.getIds();
-    for (Object propId : propIds) {
-      String key = Context.toString(propId);
-      Object value = NativeObject.getProperty(no, key);
-      if (value instanceof NativeObject) {
-        ret.put(key, getObject((NativeObject) value));
-      } else {
-        ret.put(key, value);
+  /**
+   * Map by ranges of the input, then merge the emitted values in the order of the input : the keys and the values
+   * are in the same order as a sequential map.
+   */
+  private Map<Object, List<Object>> mapParallel(final Scriptable sharedScope, final List<DBObject> objects, final int threads) {
+    final int size = objects.size();
+    List<Callable<Map<Object, List<Object>>>> mapTasks = new ArrayList<Callable<Map<Object, List<Object>>>>(threads);
+    for (int thread = 0; thread < threads; thread++) {
+      final int from = (int) ((long) size * thread / threads);
+      final int to = (int) ((long) size * (thread + 1) / threads);
+      mapTasks.add(new Callable<Map<Object, List<Object>>>() {
+        @Override
+        public Map<Object, List<Object>> call() {
+          Worker worker = new Worker(sharedScope);
+          try {
+            worker.map(objects.subList(from, to).iterator());
+            return worker.emits;
+          } finally {
+            worker.close();
+          }
+        }
+      });
+    }
+    Map<Object, List<Object>> emits = new LinkedHashMap<Object, List<Object>>();
+    for (Map<Object, List<Object>> partial : Parallel.invokeAll(mapTasks)) {
+      for (Map.Entry<Object, List<Object>> entry : partial.entrySet()) {
+        List<Object> values = emits.get(entry.getKey());
+        if (values == null) {
+          emits.put(entry.getKey(), entry.getValue());
+        } else {
+          values.addAll(entry.getValue());
+        }
       }
     }
-    return ret;
+    return emits;
+  }
+
+  /**
+   * Reduce by ranges of the keys.
+   *
+   * @return the reduced value of each key.
+   */
+  private Object[] reduceParallel(final Scriptable sharedScope, final Map<Object, List<Object>> emits, final List<Object> keys, int threads) {
+    final int size = keys.size();
+    final Object[] values = new Object[size];
+    List<Callable<Void>> reduceTasks = new ArrayList<Callable<Void>>(threads);
+    for (int thread = 0; thread < threads; thread++) {
+      final int from = (int) ((long) size * thread / threads);
+      final int to = (int) ((long) size * (thread + 1) / threads);
+      reduceTasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          Worker worker = new Worker(sharedScope);
+          try {
+            worker.reduce(emits, keys, from, to, values);
+            return null;
+          } finally {
+            worker.close();
+          }
+        }
+      });
+    }
+    Parallel.invokeAll(reduceTasks);
+    return values;
   }
 
   /**
-   * Create the map/reduce/finalize function.
+   * The JavaScript context of a thread, with its own scope over the shared scope, and the values emitted in this
+   * thread by key. Must be used and closed by the thread which created it.
    */
-  private List<String> constructJavascriptFunction(List<DBObject> objects) {
-    List<String> result = new ArrayList<String>();
-    StringBuilder sb = new StringBuilder(80000);
-    // Add some function to javascript engine.
-    addMongoFunctions(sb);
-
-    // Create variables for exporting.
-    sb.append("var $$$fongoEmits$$$ = new Object();\n");
-    sb.append("function emit(param1, param2) { if(typeof $$$fongoEmits$$$[param1] === 'undefined') { " +
-        "$$$fongoEmits$$$[param1] = new Array();" +
-        "}\n" +
-        "$$$fongoEmits$$$[param1][$$$fongoEmits$$$[param1].length] = param2;\n" +
-        "};\n");
-    // Prepare map function.
-    sb.append("var fongoMapFunction = ").append(map).append(";\n");
-    sb.append("var $$$fongoVars$$$ = new Object();\n");
-    // For each object, execute in javascript the function.
-    for (DBObject object : objects) {
-      String json = JSON.serialize(object);
-      sb.append("$$$fongoVars$$$ = ").append(json).append(";\n");
-      sb.append("$$$fongoVars$$$['fongoExecute'] = fongoMapFunction;\n");
-      sb.append("$$$fongoVars$$$.fongoExecute();\n");
-      if (sb.length() > 65535) { // Rhino limit :-(
-        result.add(sb.toString());
-        sb.setLength(0);
+  private final class Worker {
+    private final Context cx;
+    private final Scriptable scope;
+    private final Map<Object, List<Object>> emits = new LinkedHashMap<Object, List<Object>>();
+    private final int threshold = reduceThreshold;
+    private Function reduceFunction;
+
+    Worker(Scriptable sharedScope) {
+      this.cx = Context.enter();
+      this.scope = cx.newObject(sharedScope);
+      this.scope.setPrototype(sharedScope);
+      this.scope.setParentScope(null);
+      ScriptableObject.putProperty(scope, "emit", new BaseFunction() {
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+          emit(args.length > 0 ? args[0] : null, args.length > 1 ? args[1] : null);
+          return Context.getUndefinedValue();
+        }
+      });
+    }
+
+    /**
+     * Add the value to the buffer of the key, reduced when it reaches the threshold.
+     */
+    private void emit(Object key, Object value) {
+      Object javaKey = ScriptableDBObject.toJava(key);
+      List<Object> values = emits.get(javaKey);
+      if (values == null) {
+        values = new ArrayList<Object>();
+        emits.put(javaKey, values);
+      }
+      values.add(value);
+      if (values.size() >= threshold) {
+        Object reduced = call(reduceFunction(), scope, key, cx.newArray(scope, values.toArray()));
+        values.clear();
+        values.add(reduced);
       }
     }
-    result.add(sb.toString());
 
-    // Add Reduce Function
-    sb.setLength(0);
-    sb.append("var reduce = ").append(reduce).append("\n");
-    sb.append("var $$$fongoOuts$$$ = Array();\n" +
-        "for(i in $$$fongoEmits$$$) {\n" +
-        "$$$fongoOuts$$$[$$$fongoOuts$$$.length] = { _id : i, value : reduce(i, $$$fongoEmits$$$[i]) };\n" +
-        "}\n");
-    result.add(sb.toString());
+    void map(Iterator<DBObject> objects) {
+      Function mapFunction = compileFunction("map", map);
+      while (objects.hasNext()) {
+        call(mapFunction, new ScriptableDBObject(scope, objects.next()));
+      }
+    }
 
-    return result;
-  }
+    /**
+     * Reduce the keys from index "from" (inclusive) to index "to" (exclusive).
+     */
+    void reduce(Map<Object, List<Object>> emits, List<Object> keys, int from, int to, Object[] values) {
+      Function reduceFunction = reduceFunction();
+      for (int i = from; i < to; i++) {
+        Object key = keys.get(i);
+        Scriptable emitted = cx.newArray(scope, emits.get(key).toArray());
+        values[i] = ScriptableDBObject.toJava(call(reduceFunction, scope, ScriptableDBObject.toJavascript(scope, key), emitted));
+      }
+    }
+
+    /**
+     * Reduce values converted from Java.
+     */
+    Object reduce(Object key, Object... values) {
+      Object[] javascriptValues = new Object[values.length];
+      for (int i = 0; i < values.length; i++) {
+        javascriptValues[i] = ScriptableDBObject.toJavascript(scope, values[i]);
+      }
+      Scriptable reduced = cx.newArray(scope, javascriptValues);
+      return ScriptableDBObject.toJava(call(reduceFunction(), scope, ScriptableDBObject.toJavascript(scope, key), reduced));
+    }
 
-  private void addMongoFunctions(StringBuilder construct) {
-    // Add some function to javascript engine.
-    construct.append("Array.sum = function(array) {\n" +
-        "    var a = 0;\n" +
-        "    for (var i = 0; i < array.length; i++) {\n" +
-        "        a = a + array[i];\n" +
-        "    }\n" +
-        "    return a;" +
-        "};\n");
+    void close() {
+      Context.exit();
+    }
+
+    private Function reduceFunction() {
+      if (reduceFunction == null) {
+        reduceFunction = compileFunction("reduce", reduce);
+      }
+      return reduceFunction;
+    }
+
+    /**
+     * Compile a function given as "function(...) {...};".
+     */
+    private Function compileFunction(String name, String source) {
+      String function = source.trim();
+      while (function.endsWith(";")) {
+        function = function.substring(0, function.length() - 1).trim();
+      }
+      try {
+        return cx.compileFunction(scope, function, "<" + name + ">", 1, null);
+      } catch (RhinoException e) {
+        LOG.error("Exception compiling {} function {}", name, source, e);
+        fongoDB.notOkErrorResult(16722, "JavaScript execution failed: " + e.getMessage()).throwOnError();
+        return null;
+      }
+    }
+
+    private Object call(Function function, Scriptable thisObject, Object... args) {
+      try {
+        return function.call(cx, scope, thisObject, args);
+      } catch (RhinoException e) {
+        LOG.error("Exception running script {}", cx.decompileFunction(function, 2), e);
+        fongoDB.notOkErrorResult(16722, "JavaScript execution failed: " + e.getMessage()).throwOnError();
+        return null;
+      }
+    }
   }
 }
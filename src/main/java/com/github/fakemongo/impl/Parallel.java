@@ -0,0 +1,77 @@
+package com.github.fakemongo.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Work shared by the threads of the parallel $group and mapReduce.
+ */
+public final class Parallel {
+
+  private Parallel() {
+  }
+
+  /**
+   * One pool for all the collections, created by the first parallel work : daemon threads, which don't prevent the
+   * JVM to stop, and die after one minute without work.
+   */
+  private static final class Holder {
+    static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "fongo-parallel-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Read the first objects of an input, to know if it's worth the threads without reading all of it.
+   *
+   * @param input     objects, read until the limit.
+   * @param threshold maximum number of objects read.
+   * @return the objects read, less than the threshold if the input is exhausted.
+   */
+  public static <T> List<T> readAhead(Iterator<T> input, int threshold) {
+    List<T> objects = new ArrayList<T>();
+    while (objects.size() < threshold && input.hasNext()) {
+      objects.add(input.next());
+    }
+    return objects;
+  }
+
+  /**
+   * Run the tasks in the shared pool and wait for their results.
+   *
+   * @return the results, in the order of the tasks.
+   * @throws RuntimeException the exception of the first failed task.
+   */
+  public static <T> List<T> invokeAll(List<Callable<T>> tasks) {
+    try {
+      List<T> results = new ArrayList<T>(tasks.size());
+      for (Future<T> future : Holder.EXECUTOR.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package com.github.fakemongo.impl;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+/**
+ * A document seen by the JavaScript functions, without serialization : a field is converted when the script reads it,
+ * the fields written by the script are kept in the JavaScript object and never change the document.
+ */
+class ScriptableDBObject extends ScriptableObject {
+  private final DBObject document;
+  private final Set<String> deleted = new HashSet<String>();
+
+  ScriptableDBObject(Scriptable scope, DBObject document) {
+    super(scope, ScriptableObject.getObjectPrototype(scope));
+    this.document = document;
+  }
+
+  @Override
+  public String getClassName() {
+    return "Object";
+  }
+
+  @Override
+  public Object get(String name, Scriptable start) {
+    if (!super.has(name, this) && isDocumentField(name)) {
+      super.put(name, this, toJavascript(ScriptableObject.getTopLevelScope(this), document.get(name)));
+    }
+    return super.get(name, start);
+  }
+
+  @Override
+  public boolean has(String name, Scriptable start) {
+    return super.has(name, start) || isDocumentField(name);
+  }
+
+  @Override
+  public void delete(String name) {
+    deleted.add(name);
+    super.delete(name);
+  }
+
+  @Override
+  public Object[] getIds() {
+    Set<Object> ids = new LinkedHashSet<Object>();
+    for (String key : document.keySet()) {
+      if (!deleted.contains(key)) {
+        ids.add(key);
+      }
+    }
+    for (Object id : super.getIds()) {
+      ids.add(id);
+    }
+    return ids.toArray();
+  }
+
+  private boolean isDocumentField(String name) {
+    return !deleted.contains(name) && document.containsField(name);
+  }
+
+  /**
+   * Convert a value of a document for the scripts : numbers are doubles like in JavaScript, arrays are JavaScript
+   * arrays, sub-documents are wrapped.
+   */
+  static Object toJavascript(Scriptable scope, Object value) {
+    if (value == null || value instanceof String || value instanceof Boolean) {
+      return value;
+    }
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    if (value instanceof Character) {
+      return value.toString();
+    }
+    if (value instanceof Date) {
+      return Context.getCurrentContext().newObject(scope, "Date", new Object[]{(double) ((Date) value).getTime()});
+    }
+    if (value instanceof List) {
+      List list = (List) value;
+      Object[] elements = new Object[list.size()];
+      for (int i = 0; i < elements.length; i++) {
+        elements[i] = toJavascript(scope, list.get(i));
+      }
+      return Context.getCurrentContext().newArray(scope, elements);
+    }
+    if (value instanceof DBObject) {
+      return new ScriptableDBObject(scope, (DBObject) value);
+    }
+    return Context.javaToJS(value, scope);
+  }
+
+  /**
+   * Convert a value returned by a script : JavaScript arrays become lists, JavaScript objects become documents.
+   */
+  static Object toJava(Object value) {
+    if (value == null || value == Undefined.instance) {
+      return null;
+    }
+    if (value instanceof Wrapper) {
+      return ((Wrapper) value).unwrap();
+    }
+    if (value instanceof NativeArray) {
+      NativeArray array = (NativeArray) value;
+      BasicDBList list = new BasicDBList();
+      for (int i = 0; i < array.getLength(); i++) {
+        list.add(toJava(array.get(i, array)));
+      }
+      return list;
+    }
+    if (value instanceof Scriptable) {
+      Scriptable object = (Scriptable) value;
+      if ("Date".equals(object.getClassName())) {
+        return new Date((long) Context.toNumber(object));
+      }
+      DBObject result = new BasicDBObject();
+      for (Object id : object.getIds()) {
+        Object property = id instanceof Number ? object.get(((Number) id).intValue(), object) : object.get((String) id, object);
+        result.put(Context.toString(id), toJava(property));
+      }
+      return result;
+    }
+    return value;
+  }
+}
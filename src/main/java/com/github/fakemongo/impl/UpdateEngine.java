@@ -4,10 +4,14 @@ import com.github.fakemongo.FongoException;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -17,6 +21,8 @@ import org.slf4j.LoggerFactory;
 public class UpdateEngine {
   final static Logger LOG = LoggerFactory.getLogger(UpdateEngine.class);
 
+  private static final int MAX_PLANS = 1000;
+
   private final ExpressionParser expressionParser = new ExpressionParser();
 
 
@@ -26,6 +32,20 @@ public class UpdateEngine {
     }
   }
 
+  /**
+   * A key can't be updated with one of its parents, like "a" and "a.b".
+   */
+  void prefixCheck(Set<String> seenKeys) {
+    for (String key : seenKeys) {
+      for (int dot = key.indexOf('.'); dot > 0; dot = key.indexOf('.', dot + 1)) {
+        String parent = key.substring(0, dot);
+        if (seenKeys.contains(parent)) {
+          throw new FongoException("have conflicting mods in update : " + parent + " and " + key);
+        }
+      }
+    }
+  }
+
 
   abstract class BasicUpdate {
 
@@ -37,9 +57,9 @@ public class UpdateEngine {
       this.createMissing = createMissing;
     }
 
-    abstract void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal);
+    abstract void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies);
 
-    public DBObject doUpdate(DBObject obj, DBObject update, Set<String> seenKeys, DBObject query) {
+    public DBObject doUpdate(DBObject obj, DBObject update, Set<String> seenKeys, DBObject query, Set<Object> copies) {
       DBObject updateObject = (DBObject) update.get(command);
       HashSet<String> keySet = new HashSet<String>(updateObject.keySet());
 
@@ -49,34 +69,39 @@ public class UpdateEngine {
         LOG.debug("\tfound a key {}", updateKey);
 
         keyCheck(updateKey, seenKeys);
-        doSingleKeyUpdate(updateKey, obj, updateObject.get(updateKey), query);
+        doSingleKeyUpdate(updateKey, obj, updateObject.get(updateKey), query, copies);
       }
       return obj;
     }
 
-    void doSingleKeyUpdate(final String updateKey, final DBObject objOriginal, Object object, DBObject query) {
-      List<String> path = Util.split(updateKey);
+    void doSingleKeyUpdate(final String updateKey, final DBObject objOriginal, Object object, DBObject query, Set<Object> copies) {
+      doSingleKeyUpdate(updateKey, Util.split(updateKey), updateKey.contains(".$"), objOriginal, object, query, copies);
+    }
+
+    void doSingleKeyUpdate(final String updateKey, final List<String> path, final boolean isPositional, final DBObject objOriginal, Object object, DBObject query, Set<Object> copies) {
       String subKey = path.get(0);
       DBObject obj = objOriginal;
-      boolean isPositional = updateKey.contains(".$");
       if (isPositional) {
         LOG.debug("got a positional for query {}", query);
       }
       for (int i = 0; i < path.size() - 1; i++) {
         if (!obj.containsField(subKey)) {
           if (createMissing && !isPositional) {
-            obj.put(subKey, new BasicDBObject());
+            obj.put(subKey, created(new BasicDBObject(), copies));
           } else {
             return;
           }
         }
         Object value = obj.get(subKey);
         if ((value instanceof List) && "$".equals(path.get(i + 1))) {
-          handlePositionalUpdate(updateKey, object, (List) value, obj, query, objOriginal);
+          handlePositionalUpdate(updateKey, object, (List) value, obj, subKey, query, objOriginal, copies);
         } else if (value instanceof DBObject) {
-          obj = (DBObject) value;
+          obj = writable(obj, subKey, (DBObject) value, copies);
         } else if (value instanceof List) {
           BasicDBList newList = Util.wrap((List) value);
+          if (copies != null) {
+            obj.put(subKey, created(newList, copies));
+          }
 
           obj = newList;
         } else {
@@ -87,13 +112,13 @@ public class UpdateEngine {
       if (!isPositional) {
 
         LOG.debug("Subobject is {}", obj);
-        mergeAction(subKey, obj, object, objOriginal);
+        mergeAction(subKey, obj, object, objOriginal, copies);
         LOG.debug("Full object is {}", objOriginal);
 
       }
     }
 
-    public void handlePositionalUpdate(final String updateKey, Object object, List valueList, DBObject ownerObj, DBObject query, DBObject objOriginal) {
+    public void handlePositionalUpdate(final String updateKey, Object object, List valueList, DBObject ownerObj, String ownerKey, DBObject query, DBObject objOriginal, Set<Object> copies) {
       int dollarIndex = updateKey.indexOf("$");
       String postPath = (dollarIndex == updateKey.length() - 1) ? "" : updateKey.substring(dollarIndex + 2);
       String prePath = updateKey.substring(0, dollarIndex - 1);
@@ -121,17 +146,21 @@ public class UpdateEngine {
           }
 
           if (filter.apply((DBObject) listItem)) {
-            doSingleKeyUpdate(postPath, (DBObject) listItem, object, query);
+            DBObject item = (DBObject) listItem;
+            if (copies != null) {
+              BasicDBList list = writable(ownerObj, ownerKey, valueList instanceof BasicDBList ? (BasicDBList) valueList : Util.wrap(valueList), copies);
+              item = writable(list, String.valueOf(i), item, copies);
+            }
+            doSingleKeyUpdate(postPath, item, object, query, copies);
             break;
           }
         } else {
           //this is kind of a waste
           DBObject o = listItem instanceof DBObject ? (DBObject) listItem : new BasicDBObject(prePath, listItem);
           if (filter.apply(o)) {
-            BasicDBList newList = new BasicDBList();
-            newList.addAll(valueList);
-            ownerObj.put(prePath, newList);
-            mergeAction(String.valueOf(i), newList, object, objOriginal);
+            BasicDBList newList = created(Util.wrap(valueList), copies);
+            ownerObj.put(ownerKey, newList);
+            mergeAction(String.valueOf(i), newList, object, objOriginal, copies);
             break;
           }
         }
@@ -139,6 +168,61 @@ public class UpdateEngine {
     }
   }
 
+  /**
+   * In copy-on-write mode ({@code copies} not null), replace {@code child} by a shallow copy in its parent.
+   * A child is copied only once by update.
+   *
+   * @return the child to modify.
+   */
+  <T extends DBObject> T writable(DBObject parent, String key, T child, Set<Object> copies) {
+    if (copies == null || child == null || copies.contains(child)) {
+      return child;
+    }
+    T copy = shallowCopy(child);
+    parent.put(key, copy);
+    copies.add(copy);
+    return copy;
+  }
+
+  /**
+   * Mark an object created by the update, it can be modified in copy-on-write mode.
+   */
+  <T> T created(T object, Set<Object> copies) {
+    if (copies != null) {
+      copies.add(object);
+    }
+    return object;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends DBObject> T shallowCopy(T object) {
+    if (object instanceof List) {
+      return (T) Util.wrap((List) object);
+    }
+    DBObject copy = new BasicDBObject();
+    copy.putAll(object);
+    return (T) copy;
+  }
+
+  /**
+   * Like {@link Util#putValue(DBObject, String, Object)}, but copy the objects along the path in copy-on-write mode.
+   */
+  void putValue(DBObject dbObject, String path, Object value, Set<Object> copies) {
+    int indexDot = path.indexOf('.');
+    if (indexDot > 0) {
+      String field = path.substring(0, indexDot);
+      String nextPath = path.substring(indexDot + 1);
+
+      // Create DBObject if necessary
+      if (!dbObject.containsField(field)) {
+        dbObject.put(field, created(new BasicDBObject(), copies));
+      }
+      putValue(writable(dbObject, field, (DBObject) dbObject.get(field), copies), nextPath, value, copies);
+    } else {
+      dbObject.put(path, value);
+    }
+  }
+
   Number genericAdd(Number left, Number right) {
     if (left instanceof Float || left instanceof Double || right instanceof Float || right instanceof Double) {
       return left.doubleValue() + (right.doubleValue());
@@ -160,13 +244,13 @@ public class UpdateEngine {
   final List<BasicUpdate> commands = Arrays.<BasicUpdate>asList(
       new BasicUpdate("$set", true) {
         @Override
-        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal) {
+        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies) {
           subObject.put(subKey, object);
         }
       },
       new BasicUpdate("$inc", true) {
         @Override
-        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal) {
+        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies) {
           Number updateNumber = expressionParser.typecast(command + " value", object, Number.class);
           Object oldValue = subObject.get(subKey);
           if (oldValue == null) {
@@ -179,25 +263,25 @@ public class UpdateEngine {
       },
       new BasicUpdate("$unset", false) {
         @Override
-        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal) {
+        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies) {
           subObject.removeField(subKey);
         }
       },
       new BasicUpdate("$rename", true) {
         @Override
-        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal) {
+        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies) {
           Object objValue = subObject.removeField(subKey);
           String newKey = (String) object;
-          Util.putValue(objOriginal, newKey, objValue);
+          putValue(objOriginal, newKey, objValue, copies);
         }
       },
       new BasicUpdate("$push", true) {
         @Override
-        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal) {
+        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies) {
           if (!subObject.containsField(subKey)) {
             subObject.put(subKey, asDbList(object));
           } else {
-            BasicDBList currentValue = expressionParser.typecast(subKey, subObject.get(subKey), BasicDBList.class);
+            BasicDBList currentValue = writable(subObject, subKey, expressionParser.typecast(subKey, subObject.get(subKey), BasicDBList.class), copies);
             currentValue.add(object);
             subObject.put(subKey, currentValue);
           }
@@ -205,12 +289,12 @@ public class UpdateEngine {
       },
       new BasicUpdate("$pushAll", true) {
         @Override
-        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal) {
+        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies) {
           List newList = expressionParser.typecast(command + " value", object, List.class);
           if (!subObject.containsField(subKey)) {
             subObject.put(subKey, newList);
           } else {
-            BasicDBList currentValue = expressionParser.typecast(subKey, subObject.get(subKey), BasicDBList.class);
+            BasicDBList currentValue = writable(subObject, subKey, expressionParser.typecast(subKey, subObject.get(subKey), BasicDBList.class), copies);
             currentValue.addAll(newList);
             subObject.put(subKey, currentValue);
           }
@@ -218,10 +302,10 @@ public class UpdateEngine {
       },
       new BasicUpdate("$addToSet", true) {
         @Override
-        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal) {
+        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies) {
           boolean isEach = false;
           BasicDBList currentValue = expressionParser.typecast(subKey, subObject.get(subKey), BasicDBList.class);
-          currentValue = (currentValue == null) ? new BasicDBList() : currentValue;
+          currentValue = (currentValue == null) ? new BasicDBList() : writable(subObject, subKey, currentValue, copies);
           if (object instanceof DBObject) {
             Object eachObject = ((DBObject) object).get("$each");
             if (eachObject != null) {
@@ -247,9 +331,10 @@ public class UpdateEngine {
       },
       new BasicUpdate("$pop", false) {
         @Override
-        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal) {
+        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies) {
           BasicDBList currentList = expressionParser.typecast(command, subObject.get(subKey), BasicDBList.class);
           if (currentList != null && currentList.size() > 0) {
+            currentList = writable(subObject, subKey, currentList, copies);
             int direction = expressionParser.typecast(command, object, Number.class).intValue();
             if (direction > 0) {
               currentList.remove(currentList.size() - 1);
@@ -261,7 +346,7 @@ public class UpdateEngine {
       },
       new BasicUpdate("$pull", false) {
         @Override
-        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal) {
+        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies) {
           BasicDBList currentList = expressionParser.typecast(command + " only works on arrays", subObject.get(subKey), BasicDBList.class);
           if (currentList != null && currentList.size() > 0) {
             BasicDBList newList = new BasicDBList();
@@ -285,7 +370,7 @@ public class UpdateEngine {
       },
       new BasicUpdate("$pullAll", false) {
         @Override
-        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal) {
+        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies) {
           BasicDBList currentList = expressionParser.typecast(command + " only works on arrays", subObject.get(subKey), BasicDBList.class);
           if (currentList != null && currentList.size() > 0) {
             Set pullSet = new HashSet(expressionParser.typecast(command, object, List.class));
@@ -301,7 +386,7 @@ public class UpdateEngine {
       },
       new BasicUpdate("$bit", false) {
         @Override
-        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal) {
+        void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies) {
           Number currentNumber = expressionParser.typecast(command + " only works on integers", subObject.get(subKey), Number.class);
           if (currentNumber != null) {
             if (currentNumber instanceof Float || currentNumber instanceof Double) {
@@ -332,9 +417,16 @@ public class UpdateEngine {
       }
   );
   final Map<String, BasicUpdate> commandMap = createCommandMap();
+  // Compiled updates by shape, the least recently used is removed first.
+  private final Map<String, UpdatePlan> plans = new LinkedHashMap<String, UpdatePlan>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, UpdatePlan> eldest) {
+      return size() > MAX_PLANS;
+    }
+  };
   private final BasicUpdate basicUpdateForUpsert = new BasicUpdate("upsert", true) {
     @Override
-    void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal) {
+    void mergeAction(String subKey, DBObject subObject, Object object, DBObject objOriginal, Set<Object> copies) {
       subObject.put(subKey, object);
     }
   };
@@ -352,33 +444,130 @@ public class UpdateEngine {
   }
 
   public DBObject doUpdate(final DBObject obj, final DBObject update, DBObject query) {
+    return doUpdate(obj, update, query, null);
+  }
+
+  /**
+   * Apply an update without modifying {@code obj} : only the objects and lists along the modified paths are copied,
+   * the other values are shared between the two versions.
+   *
+   * @return the new version of {@code obj}.
+   */
+  public DBObject applyUpdate(final DBObject obj, final DBObject update, DBObject query) {
+    Set<Object> copies = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    return doUpdate(created(shallowCopy(obj), copies), update, query, copies);
+  }
+
+  private DBObject doUpdate(final DBObject obj, final DBObject update, DBObject query, Set<Object> copies) {
+    UpdatePlan plan = compile(update);
+    for (UpdateStep step : plan.steps) {
+      DBObject updateObject = (DBObject) update.get(step.basicUpdate.command);
+      Object value = updateObject.get(step.updateKey);
+      if (copies != null) {
+        // The new version must not share the values of the update ($set, $push...) with the caller or another object.
+        value = Util.clone(value);
+      }
+      step.basicUpdate.doSingleKeyUpdate(step.updateKey, step.path, step.positional, obj, value, query, copies);
+    }
+    if (plan.replacement) {
+      for (Iterator<String> iter = obj.keySet().iterator(); iter.hasNext(); ) {
+        String key = iter.next();
+        if (key != "_id") {
+          iter.remove();
+        }
+      }
+      obj.putAll(update);
+    }
+    return obj;
+  }
+
+  /**
+   * Compile an update, or retrieve the plan of an update with the same commands and keys.
+   *
+   * @throws FongoException if the update is not valid.
+   */
+  UpdatePlan compile(DBObject update) {
+    String shape = shapeOf(update);
+    synchronized (plans) {
+      UpdatePlan plan = plans.get(shape);
+      if (plan != null) {
+        return plan;
+      }
+    }
+
     boolean updateDone = false;
     Set<String> seenKeys = new HashSet<String>();
+    List<UpdateStep> steps = new ArrayList<UpdateStep>();
     for (String command : update.keySet()) {
       BasicUpdate basicUpdate = commandMap.get(command);
       if (basicUpdate != null) {
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Doing update for command {}", command);
+        DBObject updateObject = (DBObject) update.get(command);
+        for (String updateKey : new HashSet<String>(updateObject.keySet())) {
+          keyCheck(updateKey, seenKeys);
+          steps.add(new UpdateStep(basicUpdate, updateKey));
         }
-        basicUpdate.doUpdate(obj, update, seenKeys, query);
         updateDone = true;
       } else if (command.startsWith("$")) {
         throw new FongoException("unsupported update: " + update);
       }
     }
-    if (!updateDone) {
-      for (Iterator<String> iter = obj.keySet().iterator(); iter.hasNext(); ) {
-        String key = iter.next();
-        if (key != "_id") {
-          iter.remove();
+    prefixCheck(seenKeys);
+    UpdatePlan plan = new UpdatePlan(steps, !updateDone);
+    LOG.debug("compile() update {} to {} steps", shape, steps.size());
+    synchronized (plans) {
+      plans.put(shape, plan);
+    }
+    return plan;
+  }
+
+  /**
+   * The shape of an update : commands and their keys, without the values.
+   */
+  private static String shapeOf(DBObject update) {
+    StringBuilder shape = new StringBuilder();
+    for (String command : update.keySet()) {
+      shape.append(command).append(':');
+      Object value = update.get(command);
+      if (command.startsWith("$") && value instanceof DBObject) {
+        for (String key : ((DBObject) value).keySet()) {
+          shape.append(key).append('\u0000');
         }
       }
-      obj.putAll(update);
+      shape.append('\u0001');
+    }
+    return shape.toString();
+  }
+
+  /**
+   * An update compiled : commands resolved, paths split and keys checked (no duplicate, no key with its parent).
+   * Only the values are read from the update when executed.
+   */
+  static final class UpdatePlan {
+    final List<UpdateStep> steps;
+    // True if the update replace the object (no command).
+    final boolean replacement;
+
+    UpdatePlan(List<UpdateStep> steps, boolean replacement) {
+      this.steps = steps;
+      this.replacement = replacement;
+    }
+  }
+
+  static final class UpdateStep {
+    final BasicUpdate basicUpdate;
+    final String updateKey;
+    final List<String> path;
+    final boolean positional;
+
+    UpdateStep(BasicUpdate basicUpdate, String updateKey) {
+      this.basicUpdate = basicUpdate;
+      this.updateKey = updateKey;
+      this.path = Util.split(updateKey);
+      this.positional = updateKey.contains(".$");
     }
-    return obj;
   }
 
   public void mergeEmbeddedValueFromQuery(BasicDBObject newObject, DBObject q) {
-    basicUpdateForUpsert.doUpdate(newObject, new BasicDBObject(basicUpdateForUpsert.command, q), new HashSet<String>(), q);
+    basicUpdateForUpsert.doUpdate(newObject, new BasicDBObject(basicUpdateForUpsert.command, q), new HashSet<String>(), q, null);
   }
 }
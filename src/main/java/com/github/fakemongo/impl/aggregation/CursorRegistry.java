@@ -0,0 +1,187 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.util.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server side cursors of the aggregations with the "cursor" option : the documents are pulled from the last stage
+ * of the pipeline one batch at a time.
+ * A cursor not used during the timeout is closed, like in mongod. Closing a cursor deletes the temporary files of
+ * its aggregation.
+ * {@see http://docs.mongodb.org/manual/reference/command/aggregate/}
+ */
+@ThreadSafe
+public class CursorRegistry {
+  private static final Logger LOG = LoggerFactory.getLogger(CursorRegistry.class);
+
+  /**
+   * Idle time before a cursor is closed in mongod.
+   */
+  public static final long DEFAULT_TIMEOUT = 10 * 60 * 1000L;
+
+  /**
+   * Number of documents of the first batch when the batch size is not specified.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 101;
+
+  /**
+   * Maximum size of a batch : a batch must fit in a document.
+   */
+  static final long MAX_BATCH_BYTES = 16 * 1024 * 1024;
+
+  private final ConcurrentMap<Long, ServerCursor> cursors = new ConcurrentHashMap<Long, ServerCursor>();
+
+  private final AtomicLong ids = new AtomicLong();
+
+  private volatile long timeout = DEFAULT_TIMEOUT;
+
+  private static class ServerCursor {
+    private final long id;
+    private final String ns;
+    private final Iterator<DBObject> documents;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    ServerCursor(long id, String ns, Iterator<DBObject> documents) {
+      this.id = id;
+      this.ns = ns;
+      this.documents = documents;
+    }
+
+    /**
+     * @param batchSize maximum number of documents, negative for no maximum.
+     */
+    synchronized BasicDBList nextBatch(int batchSize) {
+      BasicDBList batch = new BasicDBList();
+      long bytes = 0;
+      while ((batchSize < 0 || batch.size() < batchSize) && bytes < MAX_BATCH_BYTES && documents.hasNext()) {
+        DBObject document = documents.next();
+        batch.add(document);
+        bytes += DiskUse.estimateSize(document);
+      }
+      lastUsed = System.currentTimeMillis();
+      return batch;
+    }
+
+    boolean isExhausted() {
+      return !documents.hasNext();
+    }
+
+    /**
+     * Free the documents not read.
+     */
+    synchronized void close() {
+      if (documents instanceof Closeable) {
+        try {
+          ((Closeable) documents).close();
+        } catch (IOException e) {
+          LOG.warn("can't close cursor {}", id, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Idle time before a cursor is closed.
+   *
+   * @param timeout in milliseconds.
+   */
+  public void setTimeout(long timeout) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout must not be negative : " + timeout);
+    }
+    this.timeout = timeout;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * @return number of cursors opened.
+   */
+  public int size() {
+    expire();
+    return cursors.size();
+  }
+
+  /**
+   * Open a cursor on the documents and read the first batch.
+   *
+   * @param ns        namespace of the aggregated collection.
+   * @param documents documents of the last stage.
+   * @param batchSize number of documents of the first batch, negative for the default.
+   * @return the cursor document : <code>{id: ..., ns: ..., firstBatch: [...]}</code>, with an id of 0 if all the
+   * documents are in the first batch.
+   */
+  public DBObject open(String ns, Iterator<DBObject> documents, int batchSize) {
+    expire();
+    ServerCursor cursor = new ServerCursor(ids.incrementAndGet(), ns, documents);
+    BasicDBList batch = cursor.nextBatch(batchSize < 0 ? DEFAULT_BATCH_SIZE : batchSize);
+    long id = 0;
+    if (!cursor.isExhausted()) {
+      id = cursor.id;
+      cursors.put(id, cursor);
+    }
+    LOG.debug("open() cursor {} on {} with {} documents", id, ns, batch.size());
+    return new BasicDBObject("id", id).append("ns", ns).append("firstBatch", batch);
+  }
+
+  /**
+   * Read the next batch of a cursor. The cursor is closed when all the documents are read.
+   *
+   * @param id        id of the cursor.
+   * @param batchSize number of documents of the batch, negative for all the documents (up to 16MB).
+   * @return the cursor document : <code>{id: ..., ns: ..., nextBatch: [...]}</code>, or null if the cursor doesn't
+   * exist or timed out.
+   */
+  public DBObject getMore(long id, int batchSize) {
+    expire();
+    ServerCursor cursor = cursors.get(id);
+    if (cursor == null) {
+      return null;
+    }
+    BasicDBList batch = cursor.nextBatch(batchSize);
+    if (cursor.isExhausted()) {
+      cursors.remove(id);
+      id = 0;
+    }
+    LOG.debug("getMore() cursor {} on {} with {} documents", cursor.id, cursor.ns, batch.size());
+    return new BasicDBObject("id", id).append("ns", cursor.ns).append("nextBatch", batch);
+  }
+
+  /**
+   * @return false if the cursor doesn't exist.
+   */
+  public boolean kill(long id) {
+    ServerCursor cursor = cursors.remove(id);
+    if (cursor == null) {
+      return false;
+    }
+    cursor.close();
+    return true;
+  }
+
+  /**
+   * Close the cursors idle for more than the timeout.
+   */
+  private void expire() {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<Long, ServerCursor> entry : cursors.entrySet()) {
+      if (now - entry.getValue().lastUsed >= timeout && cursors.remove(entry.getKey(), entry.getValue())) {
+        LOG.info("cursor {} on {} timed out", entry.getKey(), entry.getValue().ns);
+        entry.getValue().close();
+      }
+    }
+  }
+}
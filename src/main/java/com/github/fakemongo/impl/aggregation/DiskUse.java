@@ -0,0 +1,329 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.github.fakemongo.FongoException;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.types.Binary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spill of the blocking stages ($sort and $group) to temporary files, for an aggregation with "allowDiskUse".
+ * A file is deleted once read, the files of an aggregation not read until the end are deleted when it is closed.
+ * {@see http://docs.mongodb.org/manual/reference/command/aggregate/}
+ */
+public class DiskUse implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(DiskUse.class);
+
+  /**
+   * Memory limit of a blocking stage in mongod.
+   */
+  public static final long DEFAULT_MEMORY_LIMIT = 100L * 1024 * 1024;
+
+  private static volatile long defaultMemoryLimit = DEFAULT_MEMORY_LIMIT;
+
+  private static final AtomicLong totalBytesSpilled = new AtomicLong();
+
+  private static final AtomicLong totalFilesSpilled = new AtomicLong();
+
+  private final long memoryLimit;
+
+  private final Set<SpillFile> files = new LinkedHashSet<SpillFile>();
+
+  public DiskUse() {
+    this(defaultMemoryLimit);
+  }
+
+  public DiskUse(long memoryLimit) {
+    this.memoryLimit = memoryLimit;
+  }
+
+  /**
+   * Memory budget of a blocking stage, before spilling to disk.
+   *
+   * @param memoryLimit estimated size in bytes.
+   */
+  public static void setDefaultMemoryLimit(long memoryLimit) {
+    if (memoryLimit < 0) {
+      throw new IllegalArgumentException("memoryLimit must not be negative : " + memoryLimit);
+    }
+    defaultMemoryLimit = memoryLimit;
+  }
+
+  public static long getDefaultMemoryLimit() {
+    return defaultMemoryLimit;
+  }
+
+  /**
+   * @return bytes written to temporary files by all the aggregations.
+   */
+  public static long getTotalBytesSpilled() {
+    return totalBytesSpilled.get();
+  }
+
+  /**
+   * @return number of temporary files written by all the aggregations.
+   */
+  public static long getTotalFilesSpilled() {
+    return totalFilesSpilled.get();
+  }
+
+  public long getMemoryLimit() {
+    return memoryLimit;
+  }
+
+  /**
+   * Create a temporary file to write documents.
+   */
+  SpillFile createSpillFile() {
+    try {
+      SpillFile spillFile = new SpillFile(File.createTempFile("fongo-aggregation-", ".bson"));
+      synchronized (files) {
+        files.add(spillFile);
+      }
+      totalFilesSpilled.incrementAndGet();
+      return spillFile;
+    } catch (IOException e) {
+      throw spillError(e);
+    }
+  }
+
+  /**
+   * Delete the files not read until the end.
+   */
+  @Override
+  public void close() {
+    List<SpillFile> remaining;
+    synchronized (files) {
+      remaining = new ArrayList<SpillFile>(files);
+    }
+    for (SpillFile file : remaining) {
+      file.delete();
+    }
+  }
+
+  /**
+   * Close this disk use when the documents are all read, or fail.
+   *
+   * @param documents documents of the last stage.
+   * @return the documents, {@link Closeable} to delete the files if the documents are not read until the end.
+   */
+  public Iterator<DBObject> closeAtEnd(Iterator<DBObject> documents) {
+    return new ClosingIterator(documents);
+  }
+
+  private class ClosingIterator implements Iterator<DBObject>, Closeable {
+    private final Iterator<DBObject> documents;
+
+    ClosingIterator(Iterator<DBObject> documents) {
+      this.documents = documents;
+    }
+
+    @Override
+    public boolean hasNext() {
+      try {
+        if (documents.hasNext()) {
+          return true;
+        }
+      } catch (RuntimeException e) {
+        close();
+        throw e;
+      }
+      close();
+      return false;
+    }
+
+    @Override
+    public DBObject next() {
+      try {
+        return documents.next();
+      } catch (RuntimeException e) {
+        close();
+        throw e;
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      DiskUse.this.close();
+    }
+  }
+
+  private static FongoException spillError(IOException e) {
+    LOG.error("can't spill to disk", e);
+    return new FongoException("exception: can't spill to disk : " + e);
+  }
+
+  /**
+   * Estimate the size in memory of a value, to compare with the memory limit.
+   */
+  static long estimateSize(Object value) {
+    if (value instanceof DBObject) {
+      long size = 64;
+      if (value instanceof Collection) {
+        for (Object element : (Collection) value) {
+          size += 8 + estimateSize(element);
+        }
+      } else {
+        for (String key : ((DBObject) value).keySet()) {
+          size += 48 + 2 * key.length() + estimateSize(((DBObject) value).get(key));
+        }
+      }
+      return size;
+    }
+    if (value instanceof Map) {
+      long size = 64;
+      for (Object entry : ((Map) value).entrySet()) {
+        size += 48 + estimateSize(((Map.Entry) entry).getKey()) + estimateSize(((Map.Entry) entry).getValue());
+      }
+      return size;
+    }
+    if (value instanceof CharSequence) {
+      return 40 + 2 * ((CharSequence) value).length();
+    }
+    if (value instanceof byte[]) {
+      return 16 + ((byte[]) value).length;
+    }
+    if (value instanceof Binary) {
+      return 32 + ((Binary) value).length();
+    }
+    return 16;
+  }
+
+  /**
+   * A temporary file of documents, written then read once.
+   */
+  class SpillFile {
+    private final File file;
+    private DataOutputStream output;
+    private DataInputStream input;
+    private int count = 0;
+
+    SpillFile(File file) {
+      this.file = file;
+    }
+
+    void write(DBObject object) {
+      byte[] bytes = new DefaultDBEncoder().encode(object);
+      try {
+        if (output == null) {
+          output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+        output.writeInt(bytes.length);
+        output.write(bytes);
+      } catch (IOException e) {
+        delete();
+        throw spillError(e);
+      }
+      count++;
+      totalBytesSpilled.addAndGet(4 + bytes.length);
+    }
+
+    /**
+     * Read the documents in the order of writing. The file is deleted once all the documents are read.
+     */
+    Iterator<DBObject> read() {
+      final DataInputStream input;
+      try {
+        if (output != null) {
+          output.close();
+          output = null;
+        }
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        this.input = input;
+      } catch (IOException e) {
+        delete();
+        throw spillError(e);
+      }
+      return new Iterator<DBObject>() {
+        private final DefaultDBDecoder decoder = new DefaultDBDecoder();
+        private int read = 0;
+
+        @Override
+        public boolean hasNext() {
+          if (read < count) {
+            return true;
+          }
+          delete();
+          return false;
+        }
+
+        @Override
+        public DBObject next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          try {
+            byte[] bytes = new byte[input.readInt()];
+            input.readFully(bytes);
+            read++;
+            return decoder.decode(bytes, (DBCollection) null);
+          } catch (IOException e) {
+            delete();
+            throw spillError(e);
+          }
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    int size() {
+      return count;
+    }
+
+    /**
+     * Close the streams and delete the file, once read or when the aggregation is closed.
+     */
+    synchronized void delete() {
+      close(output);
+      output = null;
+      close(input);
+      input = null;
+      if (file.exists() && !file.delete()) {
+        LOG.warn("can't delete {}", file);
+      }
+      synchronized (files) {
+        files.remove(this);
+      }
+    }
+
+    private void close(Closeable stream) {
+      if (stream != null) {
+        try {
+          stream.close();
+        } catch (IOException e) {
+          LOG.warn("can't close {}", file, e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.mongodb.DBObject;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy iterator of documents between two stages of the pipeline.
+ */
+abstract class DocumentIterator implements Iterator<DBObject> {
+  private DBObject next;
+
+  /**
+   * Compute the next document of the stage.
+   *
+   * @return null when there is no more document.
+   */
+  abstract DBObject computeNext();
+
+  @Override
+  public boolean hasNext() {
+    if (next == null) {
+      next = computeNext();
+    }
+    return next != null;
+  }
+
+  @Override
+  public DBObject next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    DBObject result = next;
+    next = null;
+    return result;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,400 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
+import com.mongodb.MongoException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.util.annotations.ThreadSafe;
+
+/**
+ * Expression of the aggregation framework, compiled once for a stage then evaluated for each document.
+ * The field paths are split at compile time.
+ * {@see http://docs.mongodb.org/manual/reference/aggregation/#expression-operators}
+ */
+@ThreadSafe
+abstract class Expression {
+
+  /**
+   * Value of a missing field, never returned by {@link #evaluate(DBObject)}.
+   */
+  private static final Object MISSING = new Object();
+
+  /**
+   * @param document the document being worked.
+   * @return the value of the expression, null if a field is missing.
+   */
+  abstract Object evaluate(DBObject document);
+
+  /**
+   * @return false if the expression is a field missing in the document.
+   */
+  boolean exists(DBObject document) {
+    return true;
+  }
+
+  /**
+   * Compile an expression : "$field.path", an operator like <code>{$concat: [...]}</code>, a sub-document of
+   * expressions or a literal.
+   *
+   * @param coll collection used for the errors.
+   * @param spec the specification of the expression.
+   */
+  static Expression compile(DBCollection coll, Object spec) {
+    if (spec instanceof String && ((String) spec).startsWith("$")) {
+      return new FieldPath(((String) spec).substring(1));
+    }
+    if (spec instanceof DBObject && !(spec instanceof List)) {
+      DBObject object = (DBObject) spec;
+      Operator operator = Operator.of(object);
+      if (operator != null) {
+        return operator.compile(coll, object.get(operator.keyword));
+      }
+      return new ObjectExpression(coll, object, true);
+    }
+    return new Literal(spec);
+  }
+
+  /**
+   * A sub-document starting with a "$" key is an operator : fail if it's not supported, instead of returning the
+   * operator as a field.
+   */
+  static void checkOperator(DBCollection coll, DBObject spec) {
+    Iterator<String> keys = spec.keySet().iterator();
+    if (keys.hasNext()) {
+      String key = keys.next();
+      if (key.startsWith("$") && Operator.of(spec) == null) {
+        throw error(coll, 15999, "exception: invalid operator '" + key + "'");
+      }
+    }
+  }
+
+  static MongoException error(DBCollection coll, int code, String err) {
+    return ((FongoDB) coll.getDB()).notOkErrorResult(code, err).getException();
+  }
+
+  /**
+   * "$field.path" : the value of the field, or the values of the field in the sub-documents of an array.
+   */
+  static class FieldPath extends Expression {
+    private final String path;
+    private final String[] keys;
+
+    FieldPath(String path) {
+      this.path = path;
+      List<String> split = Util.split(path);
+      this.keys = split.toArray(new String[split.size()]);
+    }
+
+    String getPath() {
+      return path;
+    }
+
+    @Override
+    Object evaluate(DBObject document) {
+      Object value = resolve(document, 0);
+      return value == MISSING ? null : value;
+    }
+
+    @Override
+    boolean exists(DBObject document) {
+      return resolve(document, 0) != MISSING;
+    }
+
+    private Object resolve(Object value, int index) {
+      for (int i = index; i < keys.length; i++) {
+        if (value instanceof List) {
+          BasicDBList values = new BasicDBList();
+          for (Object element : (List) value) {
+            if (element instanceof DBObject && !(element instanceof List)) {
+              Object subValue = resolve(element, i);
+              if (subValue != MISSING) {
+                values.add(subValue);
+              }
+            }
+          }
+          return values;
+        }
+        if (!(value instanceof DBObject)) {
+          return MISSING;
+        }
+        DBObject object = (DBObject) value;
+        value = object.get(keys[i]);
+        if (value == null && !object.containsField(keys[i])) {
+          return MISSING;
+        }
+      }
+      return value;
+    }
+
+    @Override
+    public String toString() {
+      return "$" + path;
+    }
+  }
+
+  static class Literal extends Expression {
+    private final Object value;
+
+    Literal(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(DBObject document) {
+      return value;
+    }
+
+    @Override
+    public String toString() {
+      return String.valueOf(value);
+    }
+  }
+
+  /**
+   * <code>{name: "$name", city: {$toUpper: "$city"}}</code> : a sub-document of expressions.
+   */
+  static class ObjectExpression extends Expression {
+    private final Map<String, Expression> fields = new LinkedHashMap<String, Expression>();
+    private final boolean skipMissing;
+
+    /**
+     * @param skipMissing true to omit the missing fields, false to set them to null.
+     */
+    ObjectExpression(DBCollection coll, DBObject spec, boolean skipMissing) {
+      checkOperator(coll, spec);
+      this.skipMissing = skipMissing;
+      for (Map.Entry<String, Object> entry : Util.entrySet(spec)) {
+        fields.put(entry.getKey(), compile(coll, entry.getValue()));
+      }
+    }
+
+    @Override
+    Object evaluate(DBObject document) {
+      DBObject result = new BasicDBObject();
+      for (Map.Entry<String, Expression> entry : fields.entrySet()) {
+        Expression expression = entry.getValue();
+        if (!skipMissing || expression.exists(document)) {
+          result.put(entry.getKey(), expression.evaluate(document));
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return fields.toString();
+    }
+  }
+
+  /**
+   * Operator with its operands compiled.
+   */
+  abstract static class OperatorExpression extends Expression {
+    final Operator operator;
+    final Expression[] operands;
+
+    OperatorExpression(Operator operator, List<Expression> operands) {
+      this.operator = operator;
+      this.operands = operands.toArray(new Expression[operands.size()]);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("{").append(operator.keyword).append(": [");
+      for (int i = 0; i < operands.length; i++) {
+        sb.append(i == 0 ? "" : ", ").append(operands[i]);
+      }
+      return sb.append("]}").toString();
+    }
+  }
+
+  enum Operator {
+    /**
+     * {@see http://docs.mongodb.org/manual/reference/aggregation/ifNull/}
+     */
+    IF_NULL("$ifNull") {
+      @Override
+      Expression compile(DBCollection coll, Object operand) {
+        if (!(operand instanceof List) || ((List) operand).size() != 2) {
+          throw error(coll, 16020, "the $ifNull operator requires an array of 2 operands");
+        }
+        return new OperatorExpression(this, operands(coll, operand)) {
+          @Override
+          Object evaluate(DBObject document) {
+            Object value = operands[0].evaluate(document);
+            return value != null ? value : operands[1].evaluate(document);
+          }
+        };
+      }
+    },
+    /**
+     * {@see http://docs.mongodb.org/manual/reference/aggregation/concat/}
+     */
+    CONCAT("$concat") {
+      @Override
+      Expression compile(DBCollection coll, Object operand) {
+        if (!(operand instanceof List) || ((List) operand).isEmpty()) {
+          throw error(coll, 16020, "the $concat operator requires an array of operands");
+        }
+        return new OperatorExpression(this, operands(coll, operand)) {
+          @Override
+          Object evaluate(DBObject document) {
+            StringBuilder sb = new StringBuilder();
+            for (Expression expression : operands) {
+              Object value = expression.evaluate(document);
+              if (value == null) {
+                return null;
+              }
+              sb.append(value.toString());
+            }
+            return sb.toString();
+          }
+        };
+      }
+    },
+    /**
+     * {@see http://docs.mongodb.org/manual/reference/aggregation/substr/}
+     */
+    SUBSTR("$substr") {
+      @Override
+      Expression compile(DBCollection coll, Object operand) {
+        if (!(operand instanceof List) || ((List) operand).size() != 3) {
+          throw error(coll, 16020, "the $substr operator requires an array of 3 operands");
+        }
+        return new OperatorExpression(this, operands(coll, operand)) {
+          @Override
+          Object evaluate(DBObject document) {
+            Object value = operands[0].evaluate(document);
+            if (value == null) {
+              return "";
+            }
+            String string = value.toString();
+            int start = ((Number) operands[1].evaluate(document)).intValue();
+            int length = ((Number) operands[2].evaluate(document)).intValue();
+            if (start >= string.length()) {
+              return "";
+            }
+            int end = length < 0 || length > string.length() - start ? string.length() : start + length;
+            return string.substring(start, end);
+          }
+        };
+      }
+    },
+    /**
+     * {@see http://docs.mongodb.org/manual/reference/aggregation/cmp/}
+     */
+    CMP("$cmp") {
+      @Override
+      Expression compile(DBCollection coll, Object operand) {
+        if (!(operand instanceof List) || ((List) operand).size() != 2) {
+          throw error(coll, 16020, "the $cmp operator requires an array of 2 operands");
+        }
+        final ExpressionParser expressionParser = new ExpressionParser();
+        return new OperatorExpression(this, operands(coll, operand)) {
+          @Override
+          Object evaluate(DBObject document) {
+            return Integer.signum(expressionParser.compareObjects(operands[0].evaluate(document), operands[1].evaluate(document)));
+          }
+        };
+      }
+    },
+    /**
+     * {@see http://docs.mongodb.org/manual/reference/aggregation/strcasecmp/}
+     */
+    STRCASECMP("$strcasecmp") {
+      @Override
+      Expression compile(DBCollection coll, Object operand) {
+        if (!(operand instanceof List) || ((List) operand).size() != 2) {
+          throw error(coll, 16020, "the $strcasecmp operator requires an array of 2 operands");
+        }
+        return new OperatorExpression(this, operands(coll, operand)) {
+          @Override
+          Object evaluate(DBObject document) {
+            return Integer.signum(string(operands[0].evaluate(document)).compareToIgnoreCase(string(operands[1].evaluate(document))));
+          }
+        };
+      }
+    },
+    /**
+     * {@see http://docs.mongodb.org/manual/reference/aggregation/toLower/}
+     */
+    TO_LOWER("$toLower") {
+      @Override
+      Expression compile(DBCollection coll, Object operand) {
+        return new OperatorExpression(this, singleOperand(coll, operand)) {
+          @Override
+          Object evaluate(DBObject document) {
+            return string(operands[0].evaluate(document)).toLowerCase();
+          }
+        };
+      }
+    },
+    /**
+     * {@see http://docs.mongodb.org/manual/reference/aggregation/toUpper/}
+     */
+    TO_UPPER("$toUpper") {
+      @Override
+      Expression compile(DBCollection coll, Object operand) {
+        return new OperatorExpression(this, singleOperand(coll, operand)) {
+          @Override
+          Object evaluate(DBObject document) {
+            return string(operands[0].evaluate(document)).toUpperCase();
+          }
+        };
+      }
+    };
+
+    final String keyword;
+
+    Operator(String keyword) {
+      this.keyword = keyword;
+    }
+
+    abstract Expression compile(DBCollection coll, Object operand);
+
+    /**
+     * @return the operator of an expression like <code>{$concat: [...]}</code>, null for a sub-document.
+     */
+    static Operator of(DBObject spec) {
+      for (Operator operator : values()) {
+        if (spec.containsField(operator.keyword)) {
+          return operator;
+        }
+      }
+      return null;
+    }
+
+    List<Expression> operands(DBCollection coll, Object operand) {
+      List<Expression> operands = new ArrayList<Expression>();
+      for (Object spec : (List) operand) {
+        operands.add(Expression.compile(coll, spec));
+      }
+      return operands;
+    }
+
+    List<Expression> singleOperand(DBCollection coll, Object operand) {
+      if (operand instanceof List) {
+        if (((List) operand).size() != 1) {
+          throw error(coll, 16020, "the " + keyword + " operator requires 1 operand(s)");
+        }
+        return operands(coll, operand);
+      }
+      List<Expression> operands = new ArrayList<Expression>();
+      operands.add(Expression.compile(coll, operand));
+      return operands;
+    }
+
+    static String string(Object value) {
+      return value == null ? "" : value.toString();
+    }
+  }
+}
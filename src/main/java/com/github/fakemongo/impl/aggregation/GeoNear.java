@@ -0,0 +1,90 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.github.fakemongo.impl.Util;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
+import com.mongodb.FongoDBCollection;
+import java.util.Iterator;
+import java.util.List;
+import org.bson.util.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@see http://docs.mongodb.org/manual/reference/operator/aggregation/geoNear/}
+ * <pre>
+ * { $geoNear: { near: [x, y], distanceField: "field", query: {...}, limit: 100, maxDistance: ..., spherical: false,
+ * distanceMultiplier: 1, includeLocs: "field" } }
+ * </pre>
+ * The geo index filters all its documents and computes their distances before the first result, then the documents are
+ * ordered and cloned one at a time : the next stages stop the reading when they have enough documents, like a $limit.
+ */
+@ThreadSafe
+public class GeoNear extends PipelineKeyword {
+  private static final Logger LOG = LoggerFactory.getLogger(GeoNear.class);
+
+  public static final GeoNear INSTANCE = new GeoNear();
+
+  /**
+   * Number of documents when neither "limit" nor "num" is specified.
+   */
+  static final int DEFAULT_LIMIT = 100;
+
+  private GeoNear() {
+  }
+
+  /**
+   * The input is ignored : $geoNear must be the first stage.
+   */
+  @Override
+  public Iterator<DBObject> apply(DBCollection coll, Iterator<DBObject> input, DBObject object) {
+    FongoDB fongoDB = (FongoDB) coll.getDB();
+    DBObject geoNear = (DBObject) object.get(getKeyword());
+    Object near = geoNear.get("near");
+    if (!(near instanceof List) && !(near instanceof DBObject)) {
+      fongoDB.notOkErrorResult(16605, "exception: $geoNear requires a 'near' option as an Array").throwOnError();
+    }
+    Object distanceField = geoNear.get("distanceField");
+    if (!(distanceField instanceof String)) {
+      fongoDB.notOkErrorResult(16606, "exception: $geoNear requires a 'distanceField' option as a String").throwOnError();
+    }
+    final String distance = (String) distanceField;
+    final String includeLocs = (String) geoNear.get("includeLocs");
+    final double distanceMultiplier = number(geoNear.get("distanceMultiplier"), 1).doubleValue();
+    final int limit = number(geoNear.get("limit"), number(geoNear.get("num"), DEFAULT_LIMIT)).intValue();
+    // A java.util.List is accepted like a BasicDBList.
+    DBObject nearObject = near instanceof DBObject ? (DBObject) near : Util.wrap((List) near);
+    final Iterator<DBObject> results = ((FongoDBCollection) coll).geoNearIterator(nearObject, (DBObject) geoNear.get("query"),
+        (Number) geoNear.get("maxDistance"), Boolean.TRUE.equals(geoNear.get("spherical")));
+    LOG.debug("geoNear() {} limited to {}", geoNear, limit);
+
+    return new DocumentIterator() {
+      private int count = 0;
+
+      @Override
+      DBObject computeNext() {
+        if (count >= limit || !results.hasNext()) {
+          return null;
+        }
+        count++;
+        DBObject result = results.next();
+        DBObject document = (DBObject) result.get("obj");
+        Util.putValue(document, distance, ((Number) result.get("dis")).doubleValue() * distanceMultiplier);
+        if (includeLocs != null) {
+          Util.putValue(document, includeLocs, result.get("loc"));
+        }
+        return document;
+      }
+    };
+  }
+
+  private static Number number(Object value, Number defaultValue) {
+    return value instanceof Number ? (Number) value : defaultValue;
+  }
+
+  @Override
+  public String getKeyword() {
+    return "$geoNear";
+  }
+}
@@ -1,17 +1,24 @@
 package com.github.fakemongo.impl.aggregation;
 
+import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Parallel;
 import com.github.fakemongo.impl.Util;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.FongoDBCollection;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import org.bson.util.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,25 +32,93 @@ public class Group extends PipelineKeyword {
 
   public static final Group INSTANCE = new Group();
 
+  /**
+   * Minimum number of documents to group in parallel.
+   */
+  public static final int PARALLEL_THRESHOLD = 10000;
+
+  /**
+   * Number of temporary files of a $group spilled to disk.
+   */
+  static final int SPILL_PARTITIONS = 16;
+
+  private volatile int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * State of a group : the key and one accumulator by field of the result.
+   */
   static class Mapping {
     private final DBObject key;
 
-    private final DBCollection collection;
+    /**
+     * Position of the first document of the group in the input.
+     */
+    private final int position;
 
-    private final DBObject result;
+    private final Map<String, Accumulator> accumulators = new LinkedHashMap<String, Accumulator>();
 
-    public Mapping(DBObject key, DBCollection collection, DBObject result) {
+    public Mapping(DBObject key, int position) {
       this.key = key;
-      this.collection = collection;
-      this.result = result;
+      this.position = position;
+    }
+
+    void accumulate(DBObject object) {
+      for (Accumulator accumulator : accumulators.values()) {
+        accumulator.accumulate(object);
+      }
+    }
+
+    /**
+     * @return estimated size of the accumulators in memory.
+     */
+    long memory() {
+      long memory = 0;
+      for (Accumulator accumulator : accumulators.values()) {
+        memory += accumulator.memory();
+      }
+      return memory;
+    }
+
+    /**
+     * @return the state of the group, to be written in a temporary file.
+     */
+    DBObject partial(DBObject criteria) {
+      DBObject partials = new BasicDBObject();
+      for (Map.Entry<String, Accumulator> entry : accumulators.entrySet()) {
+        partials.put(entry.getKey(), entry.getValue().partial());
+      }
+      return new BasicDBObject("criteria", criteria).append("key", key).append("position", position).append("accumulators", partials);
+    }
+
+    /**
+     * Merge the state of the same group, for documents following the documents already accumulated.
+     */
+    void merge(DBObject partial) {
+      DBObject partials = (DBObject) partial.get("accumulators");
+      for (Map.Entry<String, Accumulator> entry : accumulators.entrySet()) {
+        entry.getValue().merge(partials.get(entry.getKey()));
+      }
+    }
+
+    DBObject result() {
+      DBObject result = Util.clone(key);
+      for (Map.Entry<String, Accumulator> entry : accumulators.entrySet()) {
+        Object value = entry.getValue().result();
+        if (value != null || entry.getValue().keyword.isCanReturnNull()) {
+          LOG.debug("_id:{}, keyword:{}, result:{}", key, entry.getKey(), value);
+          result.put(entry.getKey(), value);
+        } else {
+          LOG.warn("result is null for entry {}", entry.getKey());
+        }
+      }
+      return result;
     }
 
     @Override
     public String toString() {
       return "Mapping{" +
           "keyword=" + key +
-          ", collection=" + collection +
-          ", result=" + result +
+          ", accumulators=" + accumulators +
           '}';
     }
   }
@@ -51,54 +126,103 @@ public class Group extends PipelineKeyword {
   private Group() {
   }
 
+  /**
+   * Incremental state of a keyword for a group : documents are accumulated one by one.
+   */
+  abstract static class Accumulator {
+    final GroupKeyword keyword;
+
+    /**
+     * Field extracted from the documents, null if the parameter is not a field.
+     */
+    final String field;
+
+    Accumulator(GroupKeyword keyword, Object keywordParameter) {
+      this.keyword = keyword;
+      if (keywordParameter.toString().startsWith("$")) {
+        this.field = keywordParameter.toString().substring(1);
+      } else {
+        this.field = null;
+      }
+    }
+
+    abstract void accumulate(DBObject object);
+
+    abstract Object result();
+
+    /**
+     * @return the state of the accumulator, to be written in a temporary file.
+     */
+    abstract Object partial();
+
+    /**
+     * Merge the state of an accumulator of the same keyword, for documents following the documents accumulated.
+     *
+     * @param partial the result of {@link #partial()}.
+     */
+    abstract void merge(Object partial);
+
+    /**
+     * @return estimated size of the state in memory.
+     */
+    long memory() {
+      return 32;
+    }
+
+    @Override
+    public String toString() {
+      return keyword + "(" + field + ")";
+    }
+  }
+
   @ThreadSafe
   static enum GroupKeyword {
     MIN("$min") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return minmax(coll, keywordParameter, 1);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new MinMax(this, keywordParameter, 1);
       }
     },
     MAX("$max") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return minmax(coll, keywordParameter, -1);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new MinMax(this, keywordParameter, -1);
       }
     },
     FIRST("$first", true) {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return firstlast(coll, keywordParameter, true);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new FirstLast(this, keywordParameter, true);
       }
     },
     LAST("$last", true) {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return firstlast(coll, keywordParameter, false);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new FirstLast(this, keywordParameter, false);
       }
     },
     AVG("$avg") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return avg(coll, keywordParameter);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new Avg(this, keywordParameter);
       }
     },
     SUM("$sum") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return sum(coll, keywordParameter);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new Sum(this, keywordParameter);
       }
     },
     PUSH("$push") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return pushAddToSet(coll, keywordParameter, false);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new PushAddToSet(this, keywordParameter, false);
       }
     },
     ADD_TO_SET("$addToSet") {
       @Override
-      Object work(DBCollection coll, Object keywordParameter) {
-        return pushAddToSet(coll, keywordParameter, true);
+      Accumulator newAccumulator(Object keywordParameter) {
+        return new PushAddToSet(this, keywordParameter, true);
       }
     };
 
@@ -115,10 +239,10 @@ public class Group extends PipelineKeyword {
       this.canReturnNull = canReturnNull;
     }
 
-    abstract Object work(DBCollection coll, Object keywordParameter);
+    abstract Accumulator newAccumulator(Object keywordParameter);
 
-    public Object apply(DBCollection coll, DBObject parameter) {
-      return work(coll, parameter.get(keyword));
+    public Accumulator apply(DBObject parameter) {
+      return newAccumulator(parameter.get(keyword));
     }
 
     public boolean canApply(DBObject parameter) {
@@ -130,284 +254,686 @@ public class Group extends PipelineKeyword {
     }
   }
 
-  public DBCollection apply(DBCollection coll, DBObject object) {
+  /**
+   * Single pass on the documents : each document is accumulated in the state of its group.
+   * A large input is grouped in parallel, with the same result.
+   *
+   * @param coll
+   * @param input
+   * @param object
+   * @return
+   */
+  @Override
+  public Iterator<DBObject> apply(DBCollection coll, Iterator<DBObject> input, DBObject object) {
     DBObject group = (DBObject) object.get(getKeyword());
 
-    Object id = ((DBObject) object.get(getKeyword())).removeField(FongoDBCollection.ID_KEY);
+    Expression id = compileId(coll, group.get(FongoDBCollection.ID_KEY));
     LOG.debug("group() for _id : {}", id);
-    // Try to group in the mapping.
-    Map<DBObject, Mapping> mapping = createMapping(coll, id);
+    Map<DBObject, Mapping> mapping;
+    int threads = parallelism;
+    if (threads > 1) {
+      // Only a large input is read in memory for the threads.
+      List<DBObject> objects = Parallel.readAhead(input, PARALLEL_THRESHOLD);
+      if (objects.size() >= PARALLEL_THRESHOLD) {
+        objects.addAll(drain(input));
+        mapping = groupParallel(group, id, objects, threads);
+      } else {
+        mapping = group(group, id, objects.iterator());
+      }
+    } else {
+      mapping = group(group, id, input);
+    }
 
-    //noinspection unchecked
-    for (Map.Entry<String, Object> entry : ((Set<Map.Entry<String, Object>>) group.toMap().entrySet())) {
-      String key = entry.getKey();
-      Object value = entry.getValue();
-      if (value instanceof DBObject) {
-        DBObject objectValue = (DBObject) value;
-        for (Map.Entry<DBObject, Mapping> entryMapping : mapping.entrySet()) {
-          DBCollection workColl = entryMapping.getValue().collection;
-          for (GroupKeyword keyword : GroupKeyword.values()) {
-            if (keyword.canApply(objectValue)) {
-              Object result = keyword.apply(workColl, objectValue);
-              if (result != null || keyword.isCanReturnNull()) {
-                LOG.debug("_id:{}, keyword:{}, result:{}", entryMapping.getKey(), key, result);
-                entryMapping.getValue().result.put(key, result);
-              } else {
-                LOG.warn("result is null for entry {}", entry);
-              }
-              break;
+    // Extract from mapping to do the result.
+    List<DBObject> result = new ArrayList<DBObject>(mapping.size());
+    for (Mapping groupMapping : mapping.values()) {
+      result.add(groupMapping.result());
+    }
+
+    LOG.debug("group() : {} result : {}", object, result);
+    return result.iterator();
+  }
+
+  /**
+   * Group documents coming ordered by the key of the group : the documents of a group are contiguous, so a group is
+   * returned as soon as the key changes and only the state of the current group is kept in memory.
+   * If the order doesn't cover the key, the documents are grouped like {@link #apply(DBCollection, Iterator, DBObject, DiskUse)}.
+   *
+   * @param coll
+   * @param input
+   * @param object
+   * @param diskUse
+   * @param inputOrder sort of the input (like <code>{state: 1, city: -1}</code>), null if unknown.
+   * @return
+   */
+  public Iterator<DBObject> applyOrdered(DBCollection coll, final Iterator<DBObject> input, DBObject object, DiskUse diskUse, DBObject inputOrder) {
+    final DBObject group = (DBObject) object.get(getKeyword());
+    DBObject keyOrder = keyOrder(group.get(FongoDBCollection.ID_KEY), inputOrder);
+    if (keyOrder == null) {
+      return apply(coll, input, object, diskUse);
+    }
+    final Expression id = compileId(coll, group.get(FongoDBCollection.ID_KEY));
+    final Comparator<DBObject> comparator = new ExpressionParser().buildDBObjectComparator(keyOrder);
+    LOG.debug("group() for _id : {} ordered by {}", id, keyOrder);
+    return new DocumentIterator() {
+      // Groups with keys equal for the order (like 1 and 1.0), usually only one.
+      private final Map<DBObject, Mapping> mapping = new LinkedHashMap<DBObject, Mapping>();
+      private Iterator<DBObject> closed = Collections.<DBObject>emptyList().iterator();
+      private DBObject previous = null;
+      private int position = 0;
+
+      @Override
+      DBObject computeNext() {
+        while (!closed.hasNext()) {
+          if (!input.hasNext()) {
+            if (mapping.isEmpty()) {
+              return null;
             }
+            closed = close();
+          } else {
+            DBObject dbObject = input.next();
+            if (previous != null && comparator.compare(previous, dbObject) != 0) {
+              closed = close();
+            }
+            previous = dbObject;
+            DBObject criteria = criteriaForId(id, dbObject);
+            Mapping groupMapping = mapping.get(criteria);
+            if (groupMapping == null) {
+              groupMapping = newMapping(group, keyForId(id, dbObject), position);
+              mapping.put(criteria, groupMapping);
+            }
+            groupMapping.accumulate(dbObject);
+            position++;
           }
         }
+        return closed.next();
       }
-    }
 
-    coll = dropAndInsert(coll, new ArrayList<DBObject>());
+      private Iterator<DBObject> close() {
+        List<DBObject> result = new ArrayList<DBObject>(mapping.size());
+        for (Mapping groupMapping : mapping.values()) {
+          result.add(groupMapping.result());
+        }
+        mapping.clear();
+        return result.iterator();
+      }
+    };
+  }
 
-    // Extract from mapping to do the result.
-    for (Map.Entry<DBObject, Mapping> entry : mapping.entrySet()) {
-      coll.insert(entry.getValue().result);
-      entry.getValue().collection.drop();
+  /**
+   * The documents of a group are contiguous if the input is sorted first by the fields of the key, in any order.
+   *
+   * @return the part of the order on the fields of the key, null if the order doesn't cover the key.
+   */
+  private static DBObject keyOrder(Object id, DBObject inputOrder) {
+    if (inputOrder == null) {
+      return null;
     }
-
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("group() : {} result : {}", object, coll.find().toArray());
+    Set<String> fields = new HashSet<String>();
+    if (id instanceof String && ((String) id).startsWith("$")) {
+      fields.add(((String) id).substring(1));
+    } else if (id instanceof DBObject && !(id instanceof List) && Expression.Operator.of((DBObject) id) == null) {
+      for (Object value : ((DBObject) id).toMap().values()) {
+        if (!(value instanceof String) || !((String) value).startsWith("$")) {
+          return null;
+        }
+        fields.add(((String) value).substring(1));
+      }
+    } else {
+      return null;
     }
-    return coll;
+    DBObject keyOrder = new BasicDBObject();
+    for (String field : inputOrder.keySet()) {
+      if (keyOrder.keySet().size() == fields.size()) {
+        break;
+      }
+      if (!fields.contains(field)) {
+        return null;
+      }
+      keyOrder.put(field, inputOrder.get(field));
+    }
+    return keyOrder.keySet().size() == fields.size() ? keyOrder : null;
   }
 
   /**
-   * Create mapping. Group result with a 'keyword'.
+   * When the memory limit is reached, the states of the groups are written in temporary files partitioned by group,
+   * and the memory is freed. At the end, each partition is read and the states of a same group are merged in the
+   * order of the input.
    *
-   * @param coll collection to be mapped
-   * @param id   id of the group
-   * @return a (Criteria, Mapping) for the id.
+   * @param coll
+   * @param input
+   * @param object
+   * @param diskUse
+   * @return
    */
-  private Map<DBObject, Mapping> createMapping(DBCollection coll, Object id) {
+  @Override
+  public Iterator<DBObject> apply(DBCollection coll, Iterator<DBObject> input, DBObject object, DiskUse diskUse) {
+    if (diskUse == null) {
+      return apply(coll, input, object);
+    }
+    final DBObject group = (DBObject) object.get(getKeyword());
+
+    Expression id = compileId(coll, group.get(FongoDBCollection.ID_KEY));
+    LOG.debug("group() for _id : {} with disk use", id);
     Map<DBObject, Mapping> mapping = new HashMap<DBObject, Mapping>();
-    List<DBObject> objects = coll.find().toArray();
-    for (DBObject dbObject : objects) {
-      DBObject criteria = criteriaForId(id, dbObject);
-      if (!mapping.containsKey(criteria)) {
-        // Return all object we can group
-        List<DBObject> newCollection = coll.find(criteria).toArray();
-        // Delete them from collection (optim for laaaaaarge collection)
-        for (DBObject o : newCollection) {
-          coll.remove(new BasicDBObject(FongoDBCollection.ID_KEY, o.get(FongoDBCollection.ID_KEY)));
+    DiskUse.SpillFile[] partitions = null;
+    try {
+      long memory = 0;
+      int position = 0;
+      while (input.hasNext()) {
+        DBObject dbObject = input.next();
+        DBObject criteria = criteriaForId(id, dbObject);
+        Mapping groupMapping = mapping.get(criteria);
+        if (groupMapping == null) {
+          groupMapping = newMapping(group, keyForId(id, dbObject), position);
+          mapping.put(criteria, groupMapping);
+          memory += DiskUse.estimateSize(criteria) + DiskUse.estimateSize(groupMapping.key);
         }
-        // Generate keyword
-        DBObject key = keyForId(id, dbObject);
-        // Save into mapping
-        mapping.put(criteria, new Mapping(key, createAndInsert(newCollection), Util.clone(key)));
-        LOG.trace("createMapping() new criteria : {}", criteria);
+        long before = groupMapping.memory();
+        groupMapping.accumulate(dbObject);
+        memory += groupMapping.memory() - before;
+        position++;
+        if (memory > diskUse.getMemoryLimit()) {
+          partitions = spill(mapping, partitions, diskUse);
+          memory = 0;
+        }
+      }
+      if (partitions == null) {
+        List<DBObject> result = new ArrayList<DBObject>(mapping.size());
+        for (Mapping groupMapping : mapping.values()) {
+          result.add(groupMapping.result());
+        }
+        return result.iterator();
       }
+      partitions = spill(mapping, partitions, diskUse);
+    } catch (RuntimeException e) {
+      delete(partitions);
+      throw e;
     }
-    return mapping;
+
+    final DiskUse.SpillFile[] spilled = partitions;
+    return new DocumentIterator() {
+      private int partition = 0;
+      private Iterator<DBObject> results = Collections.<DBObject>emptyList().iterator();
+
+      @Override
+      DBObject computeNext() {
+        while (!results.hasNext()) {
+          if (partition >= spilled.length) {
+            return null;
+          }
+          results = mergePartition(group, spilled[partition++]);
+        }
+        return results.next();
+      }
+    };
   }
 
   /**
-   * Get the keyword from the "_id".
+   * Write the states of the groups in the partitions and clear the mapping.
+   */
+  private DiskUse.SpillFile[] spill(Map<DBObject, Mapping> mapping, DiskUse.SpillFile[] partitions, DiskUse diskUse) {
+    if (partitions == null) {
+      partitions = new DiskUse.SpillFile[SPILL_PARTITIONS];
+      for (int partition = 0; partition < partitions.length; partition++) {
+        partitions[partition] = diskUse.createSpillFile();
+      }
+    }
+    LOG.debug("group() spill {} groups", mapping.size());
+    for (Map.Entry<DBObject, Mapping> entry : mapping.entrySet()) {
+      int partition = (entry.getKey().hashCode() & Integer.MAX_VALUE) % partitions.length;
+      partitions[partition].write(entry.getValue().partial(entry.getKey()));
+    }
+    mapping.clear();
+    return partitions;
+  }
+
+  /**
+   * Merge the states of the groups of a partition.
    *
-   * @param id
-   * @param dbObject
-   * @return
+   * @return the result of the groups, in the order of their first document.
    */
+  private Iterator<DBObject> mergePartition(DBObject group, DiskUse.SpillFile partition) {
+    Map<DBObject, Mapping> mapping = new HashMap<DBObject, Mapping>();
+    for (Iterator<DBObject> partials = partition.read(); partials.hasNext(); ) {
+      DBObject partial = partials.next();
+      DBObject criteria = (DBObject) partial.get("criteria");
+      Mapping groupMapping = mapping.get(criteria);
+      if (groupMapping == null) {
+        groupMapping = newMapping(group, (DBObject) partial.get("key"), ((Number) partial.get("position")).intValue());
+        mapping.put(criteria, groupMapping);
+      }
+      groupMapping.merge(partial);
+    }
 
-  private DBObject keyForId(Object id, DBObject dbObject) {
-    DBObject result = new BasicDBObject();
-    if (id instanceof DBObject) {
-      //ex: { "state" : "$state" , "city" : "$city"}
-      DBObject subKey = new BasicDBObject();
-      //noinspection unchecked
-      for (Map.Entry<String, Object> entry : (Set<Map.Entry<String, Object>>) ((DBObject) id).toMap().entrySet()) {
-        subKey.put(entry.getKey(), Util.extractField(dbObject, fieldName(entry.getValue()))); // TODO : hierarchical, like "state" : {bar:"$foo"}
+    List<Mapping> mappings = new ArrayList<Mapping>(mapping.values());
+    Collections.sort(mappings, new Comparator<Mapping>() {
+      @Override
+      public int compare(Mapping o1, Mapping o2) {
+        return o1.position < o2.position ? -1 : (o1.position == o2.position ? 0 : 1);
       }
-      result.put(FongoDBCollection.ID_KEY, subKey);
-    } else if (id != null) {
-      String field = fieldName(id);
-      result.put(FongoDBCollection.ID_KEY, Util.extractField(dbObject, field));
-    } else {
-      result.put(FongoDBCollection.ID_KEY, null);
+    });
+    List<DBObject> result = new ArrayList<DBObject>(mappings.size());
+    for (Mapping groupMapping : mappings) {
+      result.add(groupMapping.result());
     }
-    LOG.debug("keyForId() id:{}, dbObject:{}, result:{}", id, dbObject, result);
-    return result;
+    return result.iterator();
   }
 
-  private DBObject criteriaForId(Object id, DBObject dbObject) {
-    DBObject result = new BasicDBObject();
-    if (id instanceof DBObject) {
-      //noinspection unchecked
-      for (Map.Entry<String, Object> entry : (Set<Map.Entry<String, Object>>) ((DBObject) id).toMap().entrySet()) {
-        result.put(entry.getKey(), Util.extractField(dbObject, fieldName(entry.getValue()))); // TODO : hierarchical, like "state" : {bar:"$foo"}
+  private static void delete(DiskUse.SpillFile[] partitions) {
+    if (partitions != null) {
+      for (DiskUse.SpillFile partition : partitions) {
+        partition.delete();
       }
-    } else if (id != null) {
-      String field = fieldName(id);
-      result.put(field, Util.extractField(dbObject, field));
     }
-    LOG.debug("criteriaForId() id:{}, dbObject:{}, result:{}", id, dbObject, result);
-    return result;
   }
 
-  private static String fieldName(Object name) {
-    String field = name.toString();
-    if (name instanceof String) {
-      if (name.toString().startsWith("$")) {
-        field = name.toString().substring(1);
+  /**
+   * Number of threads used to group a large input, 1 to group sequentially.
+   *
+   * @param parallelism number of threads (default to the number of processors).
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive : " + parallelism);
+    }
+    this.parallelism = parallelism;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  private Map<DBObject, Mapping> group(DBObject group, Expression id, Iterator<DBObject> input) {
+    Map<DBObject, Mapping> mapping = new HashMap<DBObject, Mapping>();
+    int position = 0;
+    while (input.hasNext()) {
+      DBObject dbObject = input.next();
+      DBObject criteria = criteriaForId(id, dbObject);
+      Mapping groupMapping = mapping.get(criteria);
+      if (groupMapping == null) {
+        groupMapping = newMapping(group, keyForId(id, dbObject), position);
+        mapping.put(criteria, groupMapping);
+        LOG.trace("group() new criteria : {}", criteria);
       }
+      groupMapping.accumulate(dbObject);
+      position++;
     }
-    return field;
+    return mapping;
   }
 
   /**
-   * {@see http://docs.mongodb.org/manual/reference/aggregation/sum/#grp._S_sum}
-   *
-   * @param coll
-   * @param value
-   * @return
+   * Group in parallel, in two phases :
+   * <ol>
+   * <li>the criteria of the documents are computed by ranges of the input ;</li>
+   * <li>each thread accumulates the documents of its own partition of the groups, in the order of the input.</li>
+   * </ol>
+   * A group is accumulated by only one thread and in the order of the input, so the partial tables are disjoint
+   * and each accumulator (even a floating-point $sum) gets the same result as the sequential grouping.
    */
-  private static Object sum(DBCollection coll, Object value) {
-    Number result = null;
-    if (value.toString().startsWith("$")) {
-      String field = value.toString().substring(1);
-      List<DBObject> objects = coll.find(null, new BasicDBObject(field, 1).append(FongoDBCollection.ID_KEY, 0)).toArray();
-      for (DBObject object : objects) {
-        if (Util.containsField(object, field)) {
-          if (result == null) {
-            result = Util.extractField(object, field);
-          } else {
-            Number other = Util.extractField(object, field);
-            result = addWithSameType(result, other);
+  private Map<DBObject, Mapping> groupParallel(final DBObject group, final Expression id, final List<DBObject> objects, final int threads) {
+    final int size = objects.size();
+    final DBObject[] criterias = new DBObject[size];
+    final int[] partitions = new int[size];
+    List<Callable<Map<DBObject, Mapping>>> criteriaTasks = new ArrayList<Callable<Map<DBObject, Mapping>>>(threads);
+    for (int thread = 0; thread < threads; thread++) {
+      final int from = (int) ((long) size * thread / threads);
+      final int to = (int) ((long) size * (thread + 1) / threads);
+      criteriaTasks.add(new Callable<Map<DBObject, Mapping>>() {
+        @Override
+        public Map<DBObject, Mapping> call() {
+          for (int i = from; i < to; i++) {
+            criterias[i] = criteriaForId(id, objects.get(i));
+            partitions[i] = (criterias[i].hashCode() & Integer.MAX_VALUE) % threads;
           }
+          return null;
         }
-      }
-    } else {
-      Number iValue = (Number) value;
-      // TODO : handle null value ?
-      result = coll.count() * iValue.doubleValue();
+      });
     }
-    return result;
+    Parallel.invokeAll(criteriaTasks);
+
+    List<Callable<Map<DBObject, Mapping>>> groupTasks = new ArrayList<Callable<Map<DBObject, Mapping>>>(threads);
+    for (int thread = 0; thread < threads; thread++) {
+      final int partition = thread;
+      groupTasks.add(new Callable<Map<DBObject, Mapping>>() {
+        @Override
+        public Map<DBObject, Mapping> call() {
+          Map<DBObject, Mapping> mapping = new LinkedHashMap<DBObject, Mapping>();
+          for (int i = 0; i < size; i++) {
+            if (partitions[i] == partition) {
+              Mapping groupMapping = mapping.get(criterias[i]);
+              if (groupMapping == null) {
+                groupMapping = newMapping(group, keyForId(id, objects.get(i)), i);
+                mapping.put(criterias[i], groupMapping);
+              }
+              groupMapping.accumulate(objects.get(i));
+            }
+          }
+          return mapping;
+        }
+      });
+    }
+    Map<DBObject, Mapping> mapping = new HashMap<DBObject, Mapping>();
+    for (Map<DBObject, Mapping> partial : Parallel.invokeAll(groupTasks)) {
+      mapping.putAll(partial);
+    }
+    return mapping;
   }
 
   /**
-   * {@see http://docs.mongodb.org/manual/reference/aggregation/avg/#grp._S_avg}
-   *
-   * @param coll  grouped collection to make the avg
-   * @param value field to be averaged.
-   * @return the average of the collection.
+   * Create the state of a new group, with an accumulator for each keyword of the group.
    */
-  private static Double avg(DBCollection coll, Object value) {
-    Number result = null;
-    long count = 1;
-    if (value.toString().startsWith("$")) {
-      String field = value.toString().substring(1);
-      List<DBObject> objects = coll.find(null, new BasicDBObject(field, 1).append(FongoDBCollection.ID_KEY, 0)).toArray();
-      for (DBObject object : objects) {
-        LOG.debug("avg object {} ", object);
-
-        if (Util.containsField(object, field)) {
-          if (result == null) {
-            result = Util.extractField(object, field);
-          } else {
-            count++;
-            Number other = Util.extractField(object, field);
-            result = addWithSameType(result, other);
+  private Mapping newMapping(DBObject group, DBObject key, int position) {
+    Mapping mapping = new Mapping(key, position);
+    //noinspection unchecked
+    for (Map.Entry<String, Object> entry : ((Set<Map.Entry<String, Object>>) group.toMap().entrySet())) {
+      String field = entry.getKey();
+      Object value = entry.getValue();
+      if (value instanceof DBObject && !FongoDBCollection.ID_KEY.equals(field)) {
+        DBObject objectValue = (DBObject) value;
+        for (GroupKeyword keyword : GroupKeyword.values()) {
+          if (keyword.canApply(objectValue)) {
+            mapping.accumulators.put(field, keyword.apply(objectValue));
+            break;
           }
         }
       }
-    } else {
-      LOG.error("Sorry, doesn't know what to do...");
-      return null;
     }
-    // Always return double.
-    return result == null ? null : (result.doubleValue() / (double) count);
+    return mapping;
+  }
+
+  /**
+   * Compile the "_id" once for all the documents.
+   * ex: "$state", { "state" : "$state" , "city" : "$city"} or null for a single group.
+   */
+  private static Expression compileId(DBCollection coll, Object id) {
+    if (id instanceof DBObject && !(id instanceof List) && Expression.Operator.of((DBObject) id) == null) {
+      // A missing field of the key is null.
+      return new Expression.ObjectExpression(coll, (DBObject) id, false);
+    }
+    return Expression.compile(coll, id);
   }
 
   /**
-   * Return the first or the last of a collection.
+   * Get the keyword from the "_id".
    *
-   * @param coll collection who contains data.
-   * @param value fieldname for searching.
+   * @param id
+   * @param dbObject
    * @return
    */
-  private static Object firstlast(DBCollection coll, Object value, boolean first) {
-    LOG.debug("first({})/last({}) on {}", first, !first, value);
-    Object result = null;
-    if (value.toString().startsWith("$")) {
-      String field = value.toString().substring(1);
-      DBCursor cursor = coll.find();
-      while (cursor.hasNext()) {
-        result = Util.extractField(cursor.next(), field);
-        if (first) {
-          break;
+  private DBObject keyForId(Expression id, DBObject dbObject) {
+    return new BasicDBObject(FongoDBCollection.ID_KEY, id.evaluate(dbObject));
+  }
+
+  /**
+   * Criteria of the group of a document in the mapping.
+   */
+  private DBObject criteriaForId(Expression id, DBObject dbObject) {
+    Object value = id.evaluate(dbObject);
+    if (id instanceof Expression.FieldPath) {
+      return new BasicDBObject(((Expression.FieldPath) id).getPath(), value);
+    }
+    if (id instanceof Expression.ObjectExpression) {
+      return (DBObject) value;
+    }
+    if (value == null) {
+      return new BasicDBObject();
+    }
+    return new BasicDBObject(FongoDBCollection.ID_KEY, value);
+  }
+
+  /**
+   * {@see http://docs.mongodb.org/manual/reference/aggregation/sum/#grp._S_sum}
+   */
+  static class Sum extends Accumulator {
+    private final Number value;
+    private Number result = null;
+    private long count = 0;
+
+    Sum(GroupKeyword keyword, Object keywordParameter) {
+      super(keyword, keywordParameter);
+      this.value = field == null ? (Number) keywordParameter : null;
+    }
+
+    @Override
+    void accumulate(DBObject object) {
+      count++;
+      if (field != null && Util.containsField(object, field)) {
+        Number other = Util.extractField(object, field);
+        if (other != null) {
+          result = result == null ? other : addWithSameType(result, other);
         }
       }
-    } else {
-      LOG.error("Sorry, doesn't know what to do...");
     }
 
-    LOG.debug("first({})/last({}) on {}, result : {}", first, !first, value, result);
-    return result;
+    @Override
+    Object result() {
+      if (field == null) {
+        // TODO : handle null value ?
+        return count * value.doubleValue();
+      }
+      return result;
+    }
+
+    @Override
+    Object partial() {
+      return new BasicDBObject("result", result).append("count", count);
+    }
+
+    @Override
+    void merge(Object partial) {
+      DBObject other = (DBObject) partial;
+      count += ((Number) other.get("count")).longValue();
+      Number otherResult = (Number) other.get("result");
+      if (otherResult != null) {
+        result = result == null ? otherResult : addWithSameType(result, otherResult);
+      }
+    }
   }
 
   /**
-   * Return the first or the last of a collection.
-   *
-   * @param coll
-   * @param value fieldname for searching.
-   * @return
+   * {@see http://docs.mongodb.org/manual/reference/aggregation/avg/#grp._S_avg}
    */
-  private static BasicDBList pushAddToSet(DBCollection coll, Object value, boolean uniqueness) {
-    LOG.debug("pushAddToSet() on {}", value);
-    BasicDBList result = null;
-    if (value.toString().startsWith("$")) {
-      result = new BasicDBList();
-      String field = value.toString().substring(1);
-      DBCursor cursor = coll.find();
-      while (cursor.hasNext()) {
-        Object fieldValue = Util.extractField(cursor.next(), field);
-        if (!uniqueness || !result.contains(fieldValue)) {
-          result.add(fieldValue);
+  static class Avg extends Accumulator {
+    private Number result = null;
+    private long count = 0;
+
+    Avg(GroupKeyword keyword, Object keywordParameter) {
+      super(keyword, keywordParameter);
+      if (field == null) {
+        LOG.error("Sorry, doesn't know what to do...");
+      }
+    }
+
+    @Override
+    void accumulate(DBObject object) {
+      if (field != null && Util.containsField(object, field)) {
+        Number other = Util.extractField(object, field);
+        if (other != null) {
+          count++;
+          result = result == null ? other : addWithSameType(result, other);
         }
       }
-    } else {
-      LOG.error("Sorry, doesn't know what to do...");
     }
 
-    LOG.debug("pushAddToSet() on {}, result : {}", value, result);
-    return result;
+    @Override
+    Object result() {
+      // Always return double.
+      return result == null ? null : (result.doubleValue() / (double) count);
+    }
+
+    @Override
+    Object partial() {
+      return new BasicDBObject("result", result).append("count", count);
+    }
+
+    @Override
+    void merge(Object partial) {
+      DBObject other = (DBObject) partial;
+      count += ((Number) other.get("count")).longValue();
+      Number otherResult = (Number) other.get("result");
+      if (otherResult != null) {
+        result = result == null ? otherResult : addWithSameType(result, otherResult);
+      }
+    }
   }
 
   /**
-   * Return the min or the max of a collection.
-   *
-   * @param coll
-   * @param value
-   * @param valueComparable 0 for equals, -1 for min, +1 for max
-   * @return
+   * The first or the last value of a group.
    */
-  private static Object minmax(DBCollection coll, Object value, int valueComparable) {
-    if (value.toString().startsWith("$")) {
-      String field = value.toString().substring(1);
-      DBCursor cursor = coll.find();
-      Comparable comparable = null;
-      while (cursor.hasNext()) {
-        DBObject object = cursor.next();
-        if (Util.containsField(object, field)) {
-          if (comparable == null) {
-            comparable = Util.extractField(object, field);
-          } else {
-            Comparable other = Util.extractField(object, field);
-            if (comparable.compareTo(other) == valueComparable) {
-              comparable = other;
-            }
-          }
-        }
+  static class FirstLast extends Accumulator {
+    private final boolean first;
+    private boolean found = false;
+    private Object result = null;
+
+    FirstLast(GroupKeyword keyword, Object keywordParameter, boolean first) {
+      super(keyword, keywordParameter);
+      this.first = first;
+      if (field == null) {
+        LOG.error("Sorry, doesn't know what to do...");
+      }
+    }
+
+    @Override
+    void accumulate(DBObject object) {
+      if (field != null && (!first || !found)) {
+        result = Util.extractField(object, field);
+        found = true;
+      }
+    }
+
+    @Override
+    Object result() {
+      return result;
+    }
+
+    @Override
+    Object partial() {
+      return new BasicDBObject("found", found).append("result", result);
+    }
+
+    @Override
+    void merge(Object partial) {
+      DBObject other = (DBObject) partial;
+      if (Boolean.TRUE.equals(other.get("found")) && (!first || !found)) {
+        result = other.get("result");
+        found = true;
+      }
+    }
+
+    @Override
+    long memory() {
+      return 32 + DiskUse.estimateSize(result);
+    }
+  }
+
+  /**
+   * All the values of a group, or only the distinct ones for $addToSet.
+   */
+  static class PushAddToSet extends Accumulator {
+    private final boolean uniqueness;
+    private final BasicDBList result = new BasicDBList();
+    private final Set<Object> values = new HashSet<Object>();
+
+    PushAddToSet(GroupKeyword keyword, Object keywordParameter, boolean uniqueness) {
+      super(keyword, keywordParameter);
+      this.uniqueness = uniqueness;
+      if (field == null) {
+        LOG.error("Sorry, doesn't know what to do...");
       }
+    }
+
+    private long memory = 32;
+
+    @Override
+    void accumulate(DBObject object) {
+      if (field != null) {
+        add(Util.extractField(object, field));
+      }
+    }
+
+    private void add(Object fieldValue) {
+      if (!uniqueness || values.add(fieldValue)) {
+        result.add(fieldValue);
+        memory += (uniqueness ? 48 : 8) + DiskUse.estimateSize(fieldValue);
+      }
+    }
+
+    @Override
+    Object result() {
+      return field == null ? null : result;
+    }
+
+    @Override
+    Object partial() {
+      return result;
+    }
+
+    @Override
+    void merge(Object partial) {
+      for (Object fieldValue : (List) partial) {
+        add(fieldValue);
+      }
+    }
+
+    @Override
+    long memory() {
+      return memory;
+    }
+  }
+
+  /**
+   * The min or the max value of a group.
+   */
+  static class MinMax extends Accumulator {
+    /**
+     * 1 for min, -1 for max
+     */
+    private final int valueComparable;
+    private Comparable comparable = null;
+
+    MinMax(GroupKeyword keyword, Object keywordParameter, int valueComparable) {
+      super(keyword, keywordParameter);
+      this.valueComparable = valueComparable;
+      if (field == null) {
+        LOG.error("Sorry, doesn't know what to do...");
+      }
+    }
+
+    @Override
+    void accumulate(DBObject object) {
+      if (field != null && Util.containsField(object, field)) {
+        Comparable other = Util.extractField(object, field);
+        accumulate(other);
+      }
+    }
+
+    private void accumulate(Comparable other) {
+      //noinspection unchecked
+      if (comparable == null || (other != null && Integer.signum(comparable.compareTo(other)) == valueComparable)) {
+        comparable = other;
+      }
+    }
+
+    @Override
+    Object result() {
       return comparable;
-    } else {
-      LOG.error("Sorry, doesn't know what to do...");
     }
-    return null;
+
+    @Override
+    Object partial() {
+      return new BasicDBObject("result", comparable);
+    }
+
+    @Override
+    void merge(Object partial) {
+      accumulate((Comparable) ((DBObject) partial).get("result"));
+    }
+
+    @Override
+    long memory() {
+      return 32 + DiskUse.estimateSize(comparable);
+    }
   }
 
   /**
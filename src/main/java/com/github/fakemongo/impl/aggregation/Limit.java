@@ -1,11 +1,12 @@
 package com.github.fakemongo.impl.aggregation;
 
-import java.util.List;
+import java.util.Iterator;
 
 import org.bson.util.annotations.ThreadSafe;
 
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
 
 /**
  * User: william
@@ -20,13 +21,44 @@ public class Limit extends PipelineKeyword {
 
   /**
    * @param coll
+   * @param input
    * @param object
    * @return
    */
   @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    List<DBObject> objects = coll.find().limit(((Number) object.get(getKeyword())).intValue()).toArray();
-    return dropAndInsert(coll, objects);
+  public Iterator<DBObject> apply(DBCollection coll, final Iterator<DBObject> input, DBObject object) {
+    final int limit = limit((FongoDB) coll.getDB(), object);
+    return new DocumentIterator() {
+      private int count = 0;
+
+      @Override
+      DBObject computeNext() {
+        // Stop pulling from the previous stage once the limit is reached.
+        if (count >= limit || !input.hasNext()) {
+          return null;
+        }
+        count++;
+        return input.next();
+      }
+    };
+  }
+
+  /**
+   * Read the limit of a stage, like mongod : the limit must be a positive number.
+   *
+   * @param object the $limit stage.
+   * @return the number of documents to keep.
+   */
+  public int limit(FongoDB fongoDB, DBObject object) {
+    Object value = object.get(getKeyword());
+    if (!(value instanceof Number)) {
+      fongoDB.notOkErrorResult(15957, "exception: the limit must be specified as a number").throwOnError();
+    }
+    long limit = ((Number) value).longValue();
+    if (limit <= 0) {
+      fongoDB.notOkErrorResult(15958, "exception: the limit must be positive").throwOnError();
+    }
+    return (int) Math.min(limit, Integer.MAX_VALUE);
   }
 
   @Override
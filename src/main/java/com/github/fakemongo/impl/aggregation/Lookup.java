@@ -0,0 +1,163 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
+import com.mongodb.FongoDBCollection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.bson.util.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@see http://docs.mongodb.org/manual/reference/operator/aggregation/lookup/}
+ * <pre>
+ * { $lookup: { from: "collection", localField: "field", foreignField: "field", as: "output" } }
+ * </pre>
+ * With an index on the foreign field, the foreign documents are found by the index for each document (index nested
+ * loop). Without index, the foreign collection is read once in a hash table (hash join).
+ */
+@ThreadSafe
+public class Lookup extends PipelineKeyword {
+  private static final Logger LOG = LoggerFactory.getLogger(Lookup.class);
+
+  public static final Lookup INSTANCE = new Lookup();
+
+  static final String INDEX_NESTED_LOOP = "indexNestedLoop";
+
+  static final String HASH_JOIN = "hashJoin";
+
+  private Lookup() {
+  }
+
+  @Override
+  public Iterator<DBObject> apply(DBCollection coll, final Iterator<DBObject> input, DBObject object) {
+    DBObject lookup = (DBObject) object.get(getKeyword());
+    final String localField = option(coll, lookup, "localField");
+    final String foreignField = option(coll, lookup, "foreignField");
+    final String as = option(coll, lookup, "as");
+    final FongoDBCollection foreign = foreign(coll, option(coll, lookup, "from"));
+    final String index = foreign == null ? null : foreign.indexFor(foreignField);
+    LOG.debug("lookup() {} with {}", lookup, index == null ? HASH_JOIN : INDEX_NESTED_LOOP + " on " + index);
+
+    return new DocumentIterator() {
+      private Map<Object, List<DBObject>> hashTable;
+
+      @Override
+      DBObject computeNext() {
+        if (!input.hasNext()) {
+          return null;
+        }
+        DBObject document = input.next();
+        Object value = Util.extractField(document, localField);
+        List<Object> values = value instanceof List ? (List<Object>) value : Collections.singletonList(value);
+        BasicDBList joined = new BasicDBList();
+        List<DBObject> indexed = index == null ? null : foreign.findByIndex(foreignField, values);
+        if (foreign == null) {
+          // No foreign collection : nothing to join.
+        } else if (indexed != null) {
+          joined.addAll(indexed);
+        } else {
+          if (hashTable == null) {
+            hashTable = hashTable(foreign, foreignField);
+          }
+          Map<DBObject, Boolean> found = new IdentityHashMap<DBObject, Boolean>();
+          for (Object localValue : values) {
+            List<DBObject> foreignDocuments = hashTable.get(hashKey(localValue));
+            if (foreignDocuments != null) {
+              for (DBObject foreignDocument : foreignDocuments) {
+                if (found.put(foreignDocument, Boolean.TRUE) == null) {
+                  joined.add(Util.clone(foreignDocument));
+                }
+              }
+            }
+          }
+        }
+        Util.putValue(document, as, joined);
+        return document;
+      }
+    };
+  }
+
+  /**
+   * The strategy of the join, chosen like when the stage is applied.
+   */
+  @Override
+  public DBObject explain(DBCollection coll, DBObject object) {
+    DBObject lookup = Util.clone((DBObject) object.get(getKeyword()));
+    FongoDBCollection foreign = foreign(coll, option(coll, lookup, "from"));
+    String index = foreign == null ? null : foreign.indexFor(option(coll, lookup, "foreignField"));
+    if (index == null) {
+      lookup.put("strategy", HASH_JOIN);
+    } else {
+      lookup.put("strategy", INDEX_NESTED_LOOP);
+      lookup.put("index", index);
+    }
+    return new BasicDBObject(getKeyword(), lookup);
+  }
+
+  /**
+   * Foreign documents by value of the foreign field : a document is found by each element of an array, and a missing
+   * field is found by null.
+   */
+  private static Map<Object, List<DBObject>> hashTable(FongoDBCollection foreign, String foreignField) {
+    Map<Object, List<DBObject>> hashTable = new HashMap<Object, List<DBObject>>();
+    for (DBObject foreignDocument : foreign.find()) {
+      Object value = Util.extractField(foreignDocument, foreignField);
+      put(hashTable, value, foreignDocument);
+      if (value instanceof List) {
+        for (Object element : (List) value) {
+          put(hashTable, element, foreignDocument);
+        }
+      }
+    }
+    LOG.debug("hashTable() of {} : {} keys", foreign.getFullName(), hashTable.size());
+    return hashTable;
+  }
+
+  private static void put(Map<Object, List<DBObject>> hashTable, Object value, DBObject foreignDocument) {
+    Object key = hashKey(value);
+    List<DBObject> foreignDocuments = hashTable.get(key);
+    if (foreignDocuments == null) {
+      foreignDocuments = new ArrayList<DBObject>(1);
+      hashTable.put(key, foreignDocuments);
+    }
+    foreignDocuments.add(foreignDocument);
+  }
+
+  /**
+   * Numbers of different types are equal for the query, like 1 and 1.0.
+   */
+  private static Object hashKey(Object value) {
+    return value instanceof Number ? (Object) ((Number) value).doubleValue() : value;
+  }
+
+  private static FongoDBCollection foreign(DBCollection coll, String from) {
+    if (!coll.getDB().collectionExists(from)) {
+      return null;
+    }
+    return (FongoDBCollection) coll.getDB().getCollection(from);
+  }
+
+  private String option(DBCollection coll, DBObject lookup, String name) {
+    Object value = lookup.get(name);
+    if (!(value instanceof String)) {
+      ((FongoDB) coll.getDB()).notOkErrorResult(4572, "exception: missing '" + name + "' option to $lookup stage specification: " + lookup).throwOnError();
+    }
+    return (String) value;
+  }
+
+  @Override
+  public String getKeyword() {
+    return "$lookup";
+  }
+}
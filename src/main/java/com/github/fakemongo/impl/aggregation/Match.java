@@ -1,8 +1,10 @@
 package com.github.fakemongo.impl.aggregation;
 
+import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Filter;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
-import java.util.List;
+import java.util.Iterator;
 import org.bson.util.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,17 +26,27 @@ public class Match extends PipelineKeyword {
    * {@see http://docs.mongodb.org/manual/reference/aggregation/match/#pipe._S_match}
    *
    * @param coll
+   * @param input
    * @param object
    * @return
    */
   @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
+  public Iterator<DBObject> apply(DBCollection coll, final Iterator<DBObject> input, DBObject object) {
     LOG.debug("computeResult() match : {}", object);
 
-    List<DBObject> objects = coll.find((DBObject) object.get(getKeyword())).toArray();
-    coll = dropAndInsert(coll, objects);
-    LOG.debug("computeResult() match : {}, result : {}", object, objects);
-    return coll;
+    final Filter filter = new ExpressionParser().buildFilter((DBObject) object.get(getKeyword()));
+    return new DocumentIterator() {
+      @Override
+      DBObject computeNext() {
+        while (input.hasNext()) {
+          DBObject dbObject = input.next();
+          if (filter.apply(dbObject)) {
+            return dbObject;
+          }
+        }
+        return null;
+      }
+    };
   }
 
   @Override
@@ -0,0 +1,94 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
+import com.mongodb.FongoDBCollection;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.util.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@see http://docs.mongodb.org/manual/reference/operator/aggregation/out/}
+ * The documents are inserted by batch in a temporary collection, the indexes of the target are built at the end,
+ * then the temporary collection replaces the target.
+ */
+@ThreadSafe
+public class Out extends PipelineKeyword {
+  private static final Logger LOG = LoggerFactory.getLogger(Out.class);
+
+  public static final Out INSTANCE = new Out();
+
+  /**
+   * Number of documents inserted at once in the temporary collection.
+   */
+  static final int BATCH_SIZE = 1000;
+
+  private static final AtomicLong temporaryCount = new AtomicLong();
+
+  private Out() {
+  }
+
+  @Override
+  public Iterator<DBObject> apply(DBCollection coll, Iterator<DBObject> input, DBObject object) {
+    FongoDB fongoDB = (FongoDB) coll.getDB();
+    Object name = object.get(getKeyword());
+    if (!(name instanceof String)) {
+      fongoDB.notOkErrorResult(16990, "exception: $out only supports a string argument, not " + (name == null ? null : name.getClass().getSimpleName())).throwOnError();
+    }
+    String collectionName = (String) name;
+    if (collectionName.startsWith("system.")) {
+      fongoDB.notOkErrorResult(17385, "exception: Can't $out to special collection: " + collectionName).throwOnError();
+    }
+    FongoDBCollection target = (FongoDBCollection) fongoDB.getCollection(collectionName);
+    FongoDBCollection temporary = new FongoDBCollection(fongoDB, "tmp.agg_out." + temporaryCount.incrementAndGet());
+    LOG.debug("out() to {} with {}", target.getFullName(), temporary.getFullName());
+    try {
+      List<DBObject> batch = new ArrayList<DBObject>(BATCH_SIZE);
+      while (input.hasNext()) {
+        batch.add(input.next());
+        if (batch.size() == BATCH_SIZE) {
+          temporary.insert(batch, WriteConcern.ACKNOWLEDGED);
+          batch.clear();
+        }
+      }
+      temporary.insert(batch, WriteConcern.ACKNOWLEDGED);
+      copyIndexes(fongoDB, target, temporary);
+    } catch (MongoException e) {
+      temporary.dropTemporary();
+      fongoDB.notOkErrorResult(16996, "exception: insert for $out failed: " + e.getMessage()).throwOnError();
+    }
+    target.replaceWith(temporary);
+    return Collections.<DBObject>emptyList().iterator();
+  }
+
+  /**
+   * Build the indexes of the target on the temporary collection, once all the documents are inserted.
+   */
+  private void copyIndexes(FongoDB fongoDB, FongoDBCollection target, FongoDBCollection temporary) {
+    for (DBObject index : fongoDB.getCollection("system.indexes").find(new BasicDBObject("ns", target.getFullName()))) {
+      if (!"_id_".equals(index.get("name"))) {
+        DBObject options = new BasicDBObject();
+        for (String key : index.keySet()) {
+          if (!"v".equals(key) && !"key".equals(key) && !"ns".equals(key)) {
+            options.put(key, index.get(key));
+          }
+        }
+        temporary.createIndex((DBObject) index.get("key"), options);
+      }
+    }
+  }
+
+  @Override
+  public String getKeyword() {
+    return "$out";
+  }
+}
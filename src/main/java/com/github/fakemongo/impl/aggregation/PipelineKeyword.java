@@ -1,28 +1,50 @@
 package com.github.fakemongo.impl.aggregation;
 
-import com.github.fakemongo.Fongo;
-import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.UUID;
 
 /**
  * User: william Date: 24/07/13
  */
 public abstract class PipelineKeyword {
 
-  protected static final DB fongo = new Fongo("aggregation_pipeline").getDB("pipeline");
+  /**
+   * Apply the keyword on the documents coming from the previous stage.
+   * The documents are pulled one by one : only a blocking stage (like $sort or $group) reads all its input.
+   *
+   * @param coll   collection aggregated (used for error reporting).
+   * @param input  documents of the previous stage, they can be modified.
+   * @param object parameters for keyword.
+   * @return the documents in result.
+   */
+  public abstract Iterator<DBObject> apply(DBCollection coll, Iterator<DBObject> input, DBObject object);
 
+  /**
+   * Apply the keyword, with the right to spill to disk for a blocking stage.
+   *
+   * @param coll     collection aggregated (used for error reporting).
+   * @param input    documents of the previous stage, they can be modified.
+   * @param object   parameters for keyword.
+   * @param diskUse  spill to temporary files, null if the aggregation doesn't allow disk use.
+   * @return the documents in result.
+   */
+  public Iterator<DBObject> apply(DBCollection coll, Iterator<DBObject> input, DBObject object, DiskUse diskUse) {
+    return apply(coll, input, object);
+  }
 
   /**
-   * Apply the keyword on the collection
+   * Describe how the keyword is applied, for an aggregation with "explain".
    *
-   * @param coll   collection to be processed (will be destroyed).
+   * @param coll   collection aggregated.
    * @param object parameters for keyword.
-   * @return a new collection in result.
+   * @return the stage, with the details of its execution if any.
    */
-  public abstract DBCollection apply(DBCollection coll, DBObject object);
+  public DBObject explain(DBCollection coll, DBObject object) {
+    return object;
+  }
 
   /**
    * Return the keyword in the pipeline (like $sort, $group...).
@@ -32,24 +54,20 @@ public abstract class PipelineKeyword {
   public abstract String getKeyword();
 
   /**
-   * Drop collection and create new one with objects.
+   * Read all the documents of a blocking stage.
    *
-   * @param coll
-   * @param objects
-   * @return the new collection.
+   * @param input documents of the previous stage.
+   * @return the documents in a list.
    */
-  protected DBCollection dropAndInsert(DBCollection coll, List<DBObject> objects) {
-    coll.drop();
-    return createAndInsert(objects);
-  }
-
-  protected DBCollection createAndInsert(List<DBObject> objects) {
-    DBCollection coll = fongo.createCollection(UUID.randomUUID().toString(), null);
-    coll.insert(objects);
-    return coll;
+  protected List<DBObject> drain(Iterator<DBObject> input) {
+    List<DBObject> objects = new ArrayList<DBObject>();
+    while (input.hasNext()) {
+      objects.add(input.next());
+    }
+    return objects;
   }
 
   public boolean canApply(DBObject object) {
     return object.containsField(getKeyword());
   }
-}
\ No newline at end of file
+}
@@ -1,6 +1,6 @@
 package com.github.fakemongo.impl.aggregation;
 
-import java.util.List;
+import java.util.Iterator;
 
 import org.bson.util.annotations.ThreadSafe;
 
@@ -20,13 +20,25 @@ public class Skip extends PipelineKeyword {
 
   /**
    * @param coll
+   * @param input
    * @param object
    * @return
    */
   @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    List<DBObject> objects = coll.find().skip(((Number) object.get(getKeyword())).intValue()).toArray();
-    return dropAndInsert(coll, objects);
+  public Iterator<DBObject> apply(DBCollection coll, final Iterator<DBObject> input, DBObject object) {
+    final int skip = ((Number) object.get(getKeyword())).intValue();
+    return new DocumentIterator() {
+      private int skipped = 0;
+
+      @Override
+      DBObject computeNext() {
+        while (skipped < skip && input.hasNext()) {
+          input.next();
+          skipped++;
+        }
+        return input.hasNext() ? input.next() : null;
+      }
+    };
   }
 
   @Override
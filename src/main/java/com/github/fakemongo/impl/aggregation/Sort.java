@@ -1,11 +1,19 @@
 package com.github.fakemongo.impl.aggregation;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import org.bson.util.annotations.ThreadSafe;
 
+import com.github.fakemongo.impl.ExpressionParser;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * User: william
@@ -13,20 +21,169 @@ import com.mongodb.DBObject;
  */
 @ThreadSafe
 public class Sort extends PipelineKeyword {
+  private static final Logger LOG = LoggerFactory.getLogger(Sort.class);
+
   public static final Sort INSTANCE = new Sort();
 
   private Sort() {
   }
 
   /**
+   * Blocking stage : all the documents are read before being sorted.
+   *
    * @param coll
+   * @param input
    * @param object
    * @return
    */
   @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    List<DBObject> objects = coll.find().sort((DBObject) object.get(getKeyword())).toArray();
-    return dropAndInsert(coll, objects);
+  public Iterator<DBObject> apply(DBCollection coll, Iterator<DBObject> input, DBObject object) {
+    List<DBObject> objects = drain(input);
+    Collections.sort(objects, new ExpressionParser().buildDBObjectComparator((DBObject) object.get(getKeyword())));
+    return objects.iterator();
+  }
+
+  /**
+   * External merge sort : when the memory limit is reached, the documents read are sorted and written as a run
+   * in a temporary file. The runs are merged at the end, a tie goes to the first run so the sort stays stable.
+   *
+   * @param coll
+   * @param input
+   * @param object
+   * @param diskUse
+   * @return
+   */
+  @Override
+  public Iterator<DBObject> apply(DBCollection coll, Iterator<DBObject> input, DBObject object, DiskUse diskUse) {
+    if (diskUse == null) {
+      return apply(coll, input, object);
+    }
+    Comparator<DBObject> comparator = new ExpressionParser().buildDBObjectComparator((DBObject) object.get(getKeyword()));
+    List<DiskUse.SpillFile> runs = new ArrayList<DiskUse.SpillFile>();
+    List<DBObject> objects = new ArrayList<DBObject>();
+    long memory = 0;
+    try {
+      while (input.hasNext()) {
+        DBObject dbObject = input.next();
+        objects.add(dbObject);
+        memory += DiskUse.estimateSize(dbObject);
+        if (memory > diskUse.getMemoryLimit()) {
+          Collections.sort(objects, comparator);
+          DiskUse.SpillFile run = diskUse.createSpillFile();
+          runs.add(run);
+          for (DBObject sorted : objects) {
+            run.write(sorted);
+          }
+          LOG.debug("sort() spilled a run of {} documents", objects.size());
+          objects.clear();
+          memory = 0;
+        }
+      }
+    } catch (RuntimeException e) {
+      for (DiskUse.SpillFile run : runs) {
+        run.delete();
+      }
+      throw e;
+    }
+    Collections.sort(objects, comparator);
+    if (runs.isEmpty()) {
+      return objects.iterator();
+    }
+
+    List<Iterator<DBObject>> iterators = new ArrayList<Iterator<DBObject>>(runs.size() + 1);
+    for (DiskUse.SpillFile run : runs) {
+      iterators.add(run.read());
+    }
+    iterators.add(objects.iterator());
+    return merge(iterators, comparator);
+  }
+
+  /**
+   * Sort only the first documents, for a $sort followed by a $limit : a bounded heap keeps the k smallest documents
+   * read. Memory is O(k) and time O(n log k). The following $skip and $limit stages still apply.
+   *
+   * @param input  documents of the previous stage.
+   * @param object parameters for keyword.
+   * @param k      number of documents to keep.
+   * @return the first k documents, in the same order as a complete sort.
+   */
+  public Iterator<DBObject> applyTopK(Iterator<DBObject> input, DBObject object, int k) {
+    // On equality, the first document read comes first, like the stable sort.
+    Comparator<Head> order = headComparator(new ExpressionParser().buildDBObjectComparator((DBObject) object.get(getKeyword())));
+    if (k == 0) {
+      return Collections.<DBObject>emptyList().iterator();
+    }
+    PriorityQueue<Head> heap = new PriorityQueue<Head>(Math.min(k, 1024), Collections.reverseOrder(order));
+    int position = 0;
+    while (input.hasNext()) {
+      Head head = new Head(position++, input.next());
+      if (heap.size() < k) {
+        heap.add(head);
+      } else if (order.compare(head, heap.peek()) < 0) {
+        heap.poll();
+        heap.add(head);
+      }
+    }
+    List<Head> heads = new ArrayList<Head>(heap);
+    Collections.sort(heads, order);
+    List<DBObject> objects = new ArrayList<DBObject>(heads.size());
+    for (Head head : heads) {
+      objects.add(head.object);
+    }
+    LOG.debug("sort() kept {} documents of {}", objects.size(), position);
+    return objects.iterator();
+  }
+
+  /**
+   * Merge sorted runs. On equality, the document of the first run comes first.
+   */
+  private Iterator<DBObject> merge(final List<Iterator<DBObject>> runs, final Comparator<DBObject> comparator) {
+    final PriorityQueue<Head> heads = new PriorityQueue<Head>(runs.size(), headComparator(comparator));
+    for (int run = 0; run < runs.size(); run++) {
+      if (runs.get(run).hasNext()) {
+        heads.add(new Head(run, runs.get(run).next()));
+      }
+    }
+    return new DocumentIterator() {
+      @Override
+      DBObject computeNext() {
+        Head head = heads.poll();
+        if (head == null) {
+          return null;
+        }
+        Iterator<DBObject> run = runs.get(head.rank);
+        if (run.hasNext()) {
+          heads.add(new Head(head.rank, run.next()));
+        }
+        return head.object;
+      }
+    };
+  }
+
+  private static Comparator<Head> headComparator(final Comparator<DBObject> comparator) {
+    return new Comparator<Head>() {
+      @Override
+      public int compare(Head o1, Head o2) {
+        int compare = comparator.compare(o1.object, o2.object);
+        if (compare == 0) {
+          compare = o1.rank < o2.rank ? -1 : (o1.rank == o2.rank ? 0 : 1);
+        }
+        return compare;
+      }
+    };
+  }
+
+  /**
+   * A document and its rank between equal documents : its run in a merge, its position in the input for a top-k.
+   */
+  private static class Head {
+    private final int rank;
+    private final DBObject object;
+
+    Head(int rank, DBObject object) {
+      this.rank = rank;
+      this.object = object;
+    }
   }
 
   @Override
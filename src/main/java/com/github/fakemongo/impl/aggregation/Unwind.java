@@ -1,6 +1,7 @@
 package com.github.fakemongo.impl.aggregation;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import org.bson.util.annotations.ThreadSafe;
@@ -35,35 +36,65 @@ public class Unwind extends PipelineKeyword {
    * </pre>
    *
    * @param coll
+   * @param input
    * @param object
    * @return
    */
   @Override
-  public DBCollection apply(DBCollection coll, DBObject object) {
-    String fieldName = object.get(getKeyword()).toString();
-    if (!fieldName.startsWith("$")) {
+  public Iterator<DBObject> apply(DBCollection coll, final Iterator<DBObject> input, DBObject object) {
+    return unwind(input, object, false);
+  }
+
+  /**
+   * Unwind for a $group or a $project : the documents are read-only views of the original document, with the value
+   * of an element instead of the array. They must not be modified or kept by the next stage.
+   *
+   * @param coll
+   * @param input
+   * @param object
+   * @return
+   */
+  public Iterator<DBObject> applyView(DBCollection coll, final Iterator<DBObject> input, DBObject object) {
+    return unwind(input, object, true);
+  }
+
+  private Iterator<DBObject> unwind(final Iterator<DBObject> input, DBObject object, final boolean view) {
+    String field = object.get(getKeyword()).toString();
+    if (!field.startsWith("$")) {
       throw new MongoException(""); // TODO
     }
-    fieldName = fieldName.substring(1);
+    final String fieldName = field.substring(1);
+    List<String> split = Util.split(fieldName);
+    final String[] path = split.toArray(new String[split.size()]);
+
+    return new DocumentIterator() {
+      private DBObject dbObject;
+      private Iterator<Object> elements = Collections.emptyList().iterator();
 
-    List<DBObject> result = new ArrayList<DBObject>();
-    for (DBObject dbObject : coll.find().toArray()) {
-      if (Util.containsField(dbObject, fieldName)) {
-        Object oValue = Util.extractField(dbObject, fieldName);
-        if (!(oValue instanceof BasicDBList)) {
+      @Override
+      DBObject computeNext() {
+        while (!elements.hasNext()) {
+          if (!input.hasNext()) {
+            return null;
+          }
+          dbObject = input.next();
+          if (Util.containsField(dbObject, fieldName)) {
+            Object oValue = Util.extractField(dbObject, fieldName);
+            if (!(oValue instanceof BasicDBList)) {
 //          throw fongoDB..errorResult(15978, "$unwind:  value at end of field path must be an array").getException;
-          throw new MongoException(15978, "exception: $unwind:  value at end of field path must be an array");
+              throw new MongoException(15978, "exception: $unwind:  value at end of field path must be an array");
+            }
+            elements = ((BasicDBList) oValue).iterator();
+          }
         }
-        BasicDBList list = (BasicDBList) oValue;
-        for (Object sublist : list) {
-          DBObject newValue = Util.clone(dbObject);
-          Util.putValue(newValue, fieldName, sublist);
-          newValue.removeField("_id"); // TODO _id must be the same (but Fongo doesn't handle)
-          result.add(newValue);
+        if (view) {
+          return new UnwoundDocument(dbObject, path, elements.next());
         }
+        DBObject newValue = Util.clone(dbObject);
+        Util.putValue(newValue, fieldName, elements.next());
+        return newValue;
       }
-    }
-    return dropAndInsert(coll, result);
+    };
   }
 
   @Override
@@ -0,0 +1,110 @@
+package com.github.fakemongo.impl.aggregation;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.Map;
+import java.util.Set;
+import org.bson.BSONObject;
+
+/**
+ * Read-only view of a document unwound by $unwind : the field of the array has the value of one element, the other
+ * fields are read from the original document. Nothing is copied, except the sub-documents containing the array when
+ * they are read.
+ */
+class UnwoundDocument implements DBObject {
+  private final DBObject document;
+  private final String[] path;
+  private final Object element;
+
+  /**
+   * @param document the document with the array.
+   * @param path     path of the array, split.
+   * @param element  element of the array.
+   */
+  UnwoundDocument(DBObject document, String[] path, Object element) {
+    this.document = document;
+    this.path = path;
+    this.element = element;
+  }
+
+  @Override
+  public Object get(String key) {
+    if (!path[0].equals(key)) {
+      return document.get(key);
+    }
+    if (path.length == 1) {
+      return element;
+    }
+    return replace((DBObject) document.get(key), 1);
+  }
+
+  /**
+   * Shallow copy of the sub-document at this depth of the path, with the element instead of the array.
+   */
+  private DBObject replace(DBObject subDocument, int depth) {
+    DBObject copy = new BasicDBObject();
+    copy.putAll(subDocument);
+    if (depth == path.length - 1) {
+      copy.put(path[depth], element);
+    } else {
+      copy.put(path[depth], replace((DBObject) subDocument.get(path[depth]), depth + 1));
+    }
+    return copy;
+  }
+
+  @Override
+  public boolean containsField(String key) {
+    return document.containsField(key);
+  }
+
+  @Override
+  @Deprecated
+  public boolean containsKey(String key) {
+    return containsField(key);
+  }
+
+  @Override
+  public Set<String> keySet() {
+    return document.keySet();
+  }
+
+  @Override
+  public Map toMap() {
+    return replace(document, 0).toMap();
+  }
+
+  @Override
+  public Object put(String key, Object v) {
+    throw new UnsupportedOperationException("unwound document is read-only");
+  }
+
+  @Override
+  public void putAll(BSONObject o) {
+    throw new UnsupportedOperationException("unwound document is read-only");
+  }
+
+  @Override
+  public void putAll(Map m) {
+    throw new UnsupportedOperationException("unwound document is read-only");
+  }
+
+  @Override
+  public Object removeField(String key) {
+    throw new UnsupportedOperationException("unwound document is read-only");
+  }
+
+  @Override
+  public void markAsPartialObject() {
+    throw new UnsupportedOperationException("unwound document is read-only");
+  }
+
+  @Override
+  public boolean isPartialObject() {
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return replace(document, 0).toString();
+  }
+}
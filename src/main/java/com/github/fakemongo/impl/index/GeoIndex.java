@@ -11,11 +11,14 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
 import org.slf4j.Logger;
@@ -117,6 +120,78 @@ public class GeoIndex extends IndexAbstract<GeoUtil.GeoDBObject> {
     return sortAndLimit(resultSet, limit);
   }
 
+  /**
+   * The objects matching the query, nearest first. The whole index is walked before the first result : the query is
+   * applied and the distances are computed for all the objects, only the ordering is done when the objects are read.
+   *
+   * @param maxDistance objects farther are ignored.
+   * @return the results as <code>{dis: distance, loc: location, obj: indexed object}</code>, the indexed object is not
+   * cloned.
+   */
+  public Iterator<DBObject> geoNearIterator(DBObject query, List<LatLong> coordinates, boolean spherical, double maxDistance) {
+    lookupCount++;
+
+    LOG.debug("geoNearIterator() query:{}, coordinate:{}, spherical:{}, maxDistance:{} (mapValues size:{})", query, coordinates, spherical, maxDistance, mapValues.size());
+    Filter filterValue = expressionParser.buildFilter(query);
+    List<Near> nears = new ArrayList<Near>();
+    for (List<GeoUtil.GeoDBObject> values : mapValues.values()) {
+      for (GeoUtil.GeoDBObject geoDBObject : values) {
+        if (geoDBObject.getLatLong() != null && filterValue.apply(geoDBObject)) {
+          double distance = Double.MAX_VALUE;
+          for (LatLong coordinate : coordinates) {
+            distance = Math.min(distance, GeoUtil.distanceInRadians(geoDBObject.getLatLong(), coordinate, spherical));
+          }
+          if (distance <= maxDistance) {
+            nears.add(new Near(distance, nears.size(), geoDBObject));
+          }
+        }
+      }
+    }
+    // Built in linear time, each result is then read in logarithmic time.
+    final PriorityQueue<Near> heap = new PriorityQueue<Near>(nears);
+    return new Iterator<DBObject>() {
+      @Override
+      public boolean hasNext() {
+        return !heap.isEmpty();
+      }
+
+      @Override
+      public DBObject next() {
+        Near near = heap.poll();
+        if (near == null) {
+          throw new NoSuchElementException();
+        }
+        return new BasicDBObject("dis", near.distance).append("loc", Util.extractField(near.object, geoIndex)).append("obj", near.object);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * An object with its distance, ordered by distance then by position in the index.
+   */
+  private static final class Near implements Comparable<Near> {
+    private final double distance;
+    private final int position;
+    private final GeoUtil.GeoDBObject object;
+
+    Near(double distance, int position, GeoUtil.GeoDBObject object) {
+      this.distance = distance;
+      this.position = position;
+      this.object = object;
+    }
+
+    @Override
+    public int compareTo(Near other) {
+      int compare = Double.compare(distance, other.distance);
+      return compare != 0 ? compare : (position < other.position ? -1 : (position == other.position ? 0 : 1));
+    }
+  }
+
   /**
    * Try all the map, without trying to filter by geohash.
    */
@@ -1,12 +1,16 @@
 package com.github.fakemongo.impl.index;
 
 import com.github.fakemongo.impl.ExpressionParser;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.FongoDBCollection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,4 +38,62 @@ public class Index extends IndexAbstract<DBObject> {
     return object; // Important : do not clone, indexes share objects between them.
   }
 
+  /**
+   * Restrict to the range of keys for an equality or a $gt/$gte/$lt/$lte on a single field sorted index.
+   * Arrays are not ordered like their elements, so an index with an array key is never restricted.
+   */
+  @Override
+  Map<DBObject, List<DBObject>> restrict(DBObject query) {
+    if (!(mapValues instanceof NavigableMap) || getFields().size() != 1 || isMultiKey()) {
+      return mapValues;
+    }
+    String field = getFields().iterator().next();
+    Object value = query.get(field);
+    Object lower = null, upper = null;
+    boolean lowerInclusive = false, upperInclusive = false;
+    if (value instanceof DBObject) {
+      DBObject expression = (DBObject) value;
+      for (String operator : expression.keySet()) {
+        Object bound = expression.get(operator);
+        if (!isBound(bound)) {
+          continue;
+        }
+        if (ExpressionParser.GT.equals(operator) || ExpressionParser.GTE.equals(operator)) {
+          lower = bound;
+          lowerInclusive = ExpressionParser.GTE.equals(operator);
+        } else if (ExpressionParser.LT.equals(operator) || ExpressionParser.LTE.equals(operator)) {
+          upper = bound;
+          upperInclusive = ExpressionParser.LTE.equals(operator);
+        }
+      }
+    } else if (isBound(value)) {
+      lower = upper = value;
+      lowerInclusive = upperInclusive = true;
+    }
+    if (lower == null && upper == null) {
+      return mapValues;
+    }
+    if (lower != null && upper != null) {
+      int compare = expressionParser.compareObjects(lower, upper);
+      if (compare > 0 || (compare == 0 && !(lowerInclusive && upperInclusive))) {
+        return Collections.emptyMap();
+      }
+    }
+
+    NavigableMap<DBObject, List<DBObject>> range = (NavigableMap<DBObject, List<DBObject>>) mapValues;
+    if (lower != null) {
+      DBObject key = new BasicDBObject(field, lower);
+      range = isAsc() ? range.tailMap(key, lowerInclusive) : range.headMap(key, lowerInclusive);
+    }
+    if (upper != null) {
+      DBObject key = new BasicDBObject(field, upper);
+      range = isAsc() ? range.headMap(key, upperInclusive) : range.tailMap(key, upperInclusive);
+    }
+    LOG.debug("restrict() index {} to range [{}, {}] for query {}", getName(), lower, upper, query);
+    return range;
+  }
+
+  private static boolean isBound(Object value) {
+    return value != null && !(value instanceof DBObject || value instanceof List || value instanceof Pattern || value instanceof byte[]);
+  }
 }
@@ -9,9 +9,15 @@ import com.mongodb.MongoException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeSet;
 import org.bson.types.Binary;
 
 /**
@@ -24,17 +30,21 @@ public abstract class IndexAbstract<T extends DBObject> {
   private final DBObject keys;
   private final Set<String> fields;
   private final boolean unique;
+  private final boolean asc;
   final String geoIndex;
   final ExpressionParser expressionParser = new ExpressionParser();
   // Contains all dbObject than field value can have
   final Map<T, List<T>> mapValues;
   int lookupCount = 0;
+  // True if a key has an array value.
+  private boolean multiKey = false;
 
   IndexAbstract(String name, DBObject keys, boolean unique, Map<T, List<T>> mapValues, String geoIndex) throws MongoException {
     this.name = name;
     this.fields = Collections.unmodifiableSet(keys.keySet()); // Setup BEFORE keys.
     this.keys = prepareKeys(keys);
     this.unique = unique;
+    this.asc = isAsc(keys);
     this.mapValues = mapValues;
     this.geoIndex = geoIndex;
 
@@ -80,6 +90,10 @@ public abstract class IndexAbstract<T extends DBObject> {
     return unique;
   }
 
+  public boolean isAsc() {
+    return asc;
+  }
+
   public boolean isGeoIndex() {
     return geoIndex != null;
   }
@@ -92,6 +106,10 @@ public abstract class IndexAbstract<T extends DBObject> {
     return fields;
   }
 
+  public boolean isMultiKey() {
+    return multiKey;
+  }
+
   /**
    * @param object    new object to insert in the index.
    * @param oldObject in update, old objet to remove from index.
@@ -103,6 +121,14 @@ public abstract class IndexAbstract<T extends DBObject> {
     }
 
     T key = getKeyFor(object);
+    if (!multiKey) {
+      for (Object value : key.toMap().values()) {
+        if (value instanceof List) {
+          multiKey = true;
+          break;
+        }
+      }
+    }
 
     if (unique) {
       // Unique must check if he's really unique.
@@ -147,6 +173,31 @@ public abstract class IndexAbstract<T extends DBObject> {
     return Collections.emptyList();
   }
 
+  /**
+   * Check, in case of unique index, if a batch of new objects can be added.
+   * Duplicates inside the batch are detected too.
+   *
+   * @param objects new objects to insert in the index.
+   * @return position of the first object which doesn't respect uniqueness, -1 otherwise.
+   */
+  public int firstDuplicate(List<DBObject> objects) {
+    if (unique) {
+      Set<T> batchKeys = mapValues instanceof SortedMap
+          ? new TreeSet<T>(((SortedMap<T, List<T>>) mapValues).comparator())
+          : new HashSet<T>();
+      for (int i = 0; i < objects.size(); i++) {
+        DBObject object = objects.get(i);
+        if (canHandle(object.keySet())) {
+          T key = getKeyFor(object);
+          if (mapValues.containsKey(key) || !batchKeys.add(key)) {
+            return i;
+          }
+        }
+      }
+    }
+    return -1;
+  }
+
   /**
    * Remove an object from the index.
    *
@@ -216,7 +267,7 @@ public abstract class IndexAbstract<T extends DBObject> {
     // Filter for the data.
     Filter filter = expressionParser.buildFilter(query);
     List<T> result = new ArrayList<T>();
-    for (Map.Entry<T, List<T>> entry : mapValues.entrySet()) {
+    for (Map.Entry<T, List<T>> entry : restrict(query).entrySet()) {
       if (filterKey.apply(entry.getKey())) {
         for (T object : entry.getValue()) {
           if (filter.apply(object)) {
@@ -228,6 +279,150 @@ public abstract class IndexAbstract<T extends DBObject> {
     return result;
   }
 
+  /**
+   * Retrieve the keys matching the query, one key for each indexed object.
+   * Objects are never visited : used for covered queries, when the keys hold all the needed fields.
+   *
+   * @param query query on the fields of this index only.
+   * @return keys of the matching objects (DO NOT MODIFY, they are the index keys).
+   */
+  public List<DBObject> retrieveKeys(DBObject query) {
+    lookupCount++;
+
+    // Optimization
+    if (unique && query.keySet().size() == 1 && fields.size() == 1) {
+      Object value = query.toMap().values().iterator().next();
+      if (!(value instanceof DBObject || value instanceof Binary || value instanceof byte[])) {
+        T key = getKeyFor(query);
+        if (mapValues.containsKey(key)) {
+          return Collections.<DBObject>singletonList(key);
+        }
+      }
+    }
+
+    Filter filterKey = expressionParser.buildFilter(query, getFields());
+    List<DBObject> result = new ArrayList<DBObject>();
+    for (Map.Entry<T, List<T>> entry : restrict(query).entrySet()) {
+      if (filterKey.apply(entry.getKey())) {
+        for (int i = 0; i < entry.getValue().size(); i++) {
+          result.add(entry.getKey());
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Retrieve the distinct keys matching the query, in the order of the index.
+   *
+   * @param query query on the fields of this index only.
+   * @return distinct keys (DO NOT MODIFY, they are the index keys).
+   */
+  public List<DBObject> retrieveDistinctKeys(DBObject query) {
+    lookupCount++;
+
+    Filter filterKey = expressionParser.buildFilter(query, getFields());
+    List<DBObject> result = new ArrayList<DBObject>();
+    for (T key : restrict(query).keySet()) {
+      if (filterKey.apply(key)) {
+        result.add(key);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Count the objects matching the query, from the size of the buckets.
+   * Objects are never visited : the query must only use the fields of this index.
+   *
+   * @param query query on the fields of this index only.
+   * @return number of objects matching the query.
+   */
+  public long count(DBObject query) {
+    lookupCount++;
+
+    // Optimization
+    if (unique && query.keySet().size() == 1) {
+      Object value = query.toMap().values().iterator().next();
+      if (!(value instanceof DBObject || value instanceof Binary || value instanceof byte[])) {
+        List<T> result = mapValues.get(getKeyFor(query));
+        if (result != null) {
+          return result.size();
+        }
+      }
+    }
+
+    Filter filterKey = expressionParser.buildFilter(query, getFields());
+    long count = 0;
+    for (Map.Entry<T, List<T>> entry : restrict(query).entrySet()) {
+      if (filterKey.apply(entry.getKey())) {
+        count += entry.getValue().size();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Retrieve the objects in the order of the keys, lazily : the caller can stop at the first object it needs.
+   * Objects with the same key are in insertion order.
+   *
+   * @param query   query for restriction, the objects must still be filtered.
+   * @param reverse true for the reverse order of the keys.
+   * @return objects in order, or null if this index is not sorted.
+   */
+  public Iterable<T> objectsInKeyOrder(DBObject query, boolean reverse) {
+    if (!(mapValues instanceof NavigableMap)) {
+      return null;
+    }
+    lookupCount++;
+    Map<T, List<T>> restricted = restrict(query);
+    if (!(restricted instanceof NavigableMap)) {
+      return Collections.<T>emptyList();
+    }
+    final Collection<List<T>> buckets = reverse ? ((NavigableMap<T, List<T>>) restricted).descendingMap().values() : restricted.values();
+    return new Iterable<T>() {
+      @Override
+      public Iterator<T> iterator() {
+        return new Iterator<T>() {
+          private final Iterator<List<T>> bucketIterator = buckets.iterator();
+          private Iterator<T> iterator = Collections.<T>emptyList().iterator();
+
+          @Override
+          public boolean hasNext() {
+            while (!iterator.hasNext() && bucketIterator.hasNext()) {
+              iterator = bucketIterator.next().iterator();
+            }
+            return iterator.hasNext();
+          }
+
+          @Override
+          public T next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return iterator.next();
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Restrict the entries to walk for a query.
+   * The keys of the result must still be filtered, but no matching key can be outside.
+   *
+   * @param query query for restriction.
+   * @return a view of the entries of the index.
+   */
+  Map<T, List<T>> restrict(DBObject query) {
+    return mapValues;
+  }
+
   public long getLookupCount() {
     return lookupCount;
   }
@@ -254,6 +449,7 @@ public abstract class IndexAbstract<T extends DBObject> {
 
   public void clear() {
     mapValues.clear();
+    multiKey = false;
   }
 
   /**
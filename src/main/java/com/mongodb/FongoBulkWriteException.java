@@ -0,0 +1,26 @@
+package com.mongodb;
+
+import java.util.List;
+
+/**
+ * Thrown by {@link FongoBulkWriteOperation#execute} when some operations are in error.
+ * The result of the operations executed is available.
+ */
+public class FongoBulkWriteException extends MongoException {
+  private static final long serialVersionUID = 1L;
+
+  private final transient FongoBulkWriteResult writeResult;
+
+  FongoBulkWriteException(FongoBulkWriteResult writeResult) {
+    super(writeResult.getErrors().get(0).getCode(), "bulk write error : " + writeResult.getErrors());
+    this.writeResult = writeResult;
+  }
+
+  public FongoBulkWriteResult getWriteResult() {
+    return writeResult;
+  }
+
+  public List<FongoBulkWriteResult.WriteError> getWriteErrors() {
+    return writeResult.getErrors();
+  }
+}
@@ -0,0 +1,156 @@
+package com.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A batch of inserts, updates and removes executed as one unit on a {@link FongoDBCollection}.
+ * Like the bulk api of mongod, an ordered operation stops at the first error, an unordered one continues.
+ * <p/>
+ * {@see http://docs.mongodb.org/manual/reference/method/Bulk/}
+ */
+public class FongoBulkWriteOperation {
+  private final FongoDBCollection collection;
+  private final boolean ordered;
+  private final List<Request> requests = new ArrayList<Request>();
+  private boolean executed = false;
+
+  FongoBulkWriteOperation(FongoDBCollection collection, boolean ordered) {
+    this.collection = collection;
+    this.ordered = ordered;
+  }
+
+  public boolean isOrdered() {
+    return ordered;
+  }
+
+  /**
+   * Add an insert of a document.
+   */
+  public void insert(DBObject document) {
+    addRequest(new Request(Request.Type.INSERT, null, document, false, false));
+  }
+
+  /**
+   * Start an update, replace or remove of the documents matching the query.
+   */
+  public RequestBuilder find(DBObject query) {
+    if (query == null) {
+      throw new IllegalArgumentException("query can not be null");
+    }
+    return new RequestBuilder(query, false);
+  }
+
+  /**
+   * Execute the operations with the write concern of the collection.
+   */
+  public FongoBulkWriteResult execute() {
+    return execute(collection.getWriteConcern());
+  }
+
+  /**
+   * Execute the operations.
+   *
+   * @throws FongoBulkWriteException if an operation failed and the write concern is acknowledged.
+   */
+  public FongoBulkWriteResult execute(WriteConcern concern) {
+    if (executed) {
+      throw new IllegalStateException("already executed");
+    }
+    if (requests.isEmpty()) {
+      throw new IllegalStateException("no operations");
+    }
+    executed = true;
+    return collection.executeBulkWriteOperation(ordered, Collections.unmodifiableList(requests), concern);
+  }
+
+  private void addRequest(Request request) {
+    if (executed) {
+      throw new IllegalStateException("already executed");
+    }
+    requests.add(request);
+  }
+
+  /**
+   * Operations on the documents matching a query.
+   */
+  public class RequestBuilder {
+    private final DBObject query;
+    private final boolean upsert;
+
+    RequestBuilder(DBObject query, boolean upsert) {
+      this.query = query;
+      this.upsert = upsert;
+    }
+
+    /**
+     * Insert a document if no document match the query (only for updates).
+     */
+    public RequestBuilder upsert() {
+      return new RequestBuilder(query, true);
+    }
+
+    public void update(DBObject update) {
+      checkOperators(update);
+      addRequest(new Request(Request.Type.UPDATE, query, update, upsert, true));
+    }
+
+    public void updateOne(DBObject update) {
+      checkOperators(update);
+      addRequest(new Request(Request.Type.UPDATE, query, update, upsert, false));
+    }
+
+    private void checkOperators(DBObject update) {
+      for (String key : update.keySet()) {
+        if (!key.startsWith("$")) {
+          throw new IllegalArgumentException("update document keys must start with $ : " + key);
+        }
+      }
+    }
+
+    public void replaceOne(DBObject document) {
+      for (String key : document.keySet()) {
+        if (key.startsWith("$")) {
+          throw new IllegalArgumentException("replacement document can not contain an operator : " + key);
+        }
+      }
+      addRequest(new Request(Request.Type.UPDATE, query, document, upsert, false));
+    }
+
+    public void remove() {
+      removeRequest(true);
+    }
+
+    public void removeOne() {
+      removeRequest(false);
+    }
+
+    private void removeRequest(boolean multi) {
+      if (upsert) {
+        throw new IllegalStateException("upsert is only for updates");
+      }
+      addRequest(new Request(Request.Type.REMOVE, query, null, false, multi));
+    }
+  }
+
+  static final class Request {
+    enum Type {
+      INSERT, UPDATE, REMOVE
+    }
+
+    final Type type;
+    final DBObject query;
+    final DBObject document;
+    final boolean upsert;
+    final boolean multi;
+
+    Request(Type type, DBObject query, DBObject document, boolean upsert, boolean multi) {
+      this.type = type;
+      this.query = query;
+      this.document = document;
+      this.upsert = upsert;
+      this.multi = multi;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package com.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of a {@link FongoBulkWriteOperation} : counts, upserts and the result or error of each operation.
+ */
+public class FongoBulkWriteResult {
+  private final List<WriteResult> results;
+  private final List<Upsert> upserts = new ArrayList<Upsert>();
+  private final List<WriteError> errors = new ArrayList<WriteError>();
+  private int insertedCount = 0;
+  private int matchedCount = 0;
+  private int removedCount = 0;
+
+  FongoBulkWriteResult(int size) {
+    this.results = new ArrayList<WriteResult>(Collections.<WriteResult>nCopies(size, null));
+  }
+
+  void inserted(int index, WriteResult result) {
+    insertedCount++;
+    results.set(index, result);
+  }
+
+  void updated(int index, WriteResult result) {
+    Object upserted = result.getField("upserted");
+    if (upserted != null) {
+      upserts.add(new Upsert(index, upserted));
+    } else {
+      matchedCount += result.getN();
+    }
+    results.set(index, result);
+  }
+
+  void removed(int index, WriteResult result) {
+    removedCount += result.getN();
+    results.set(index, result);
+  }
+
+  void error(int index, int code, String message) {
+    errors.add(new WriteError(index, code, message));
+  }
+
+  public int getInsertedCount() {
+    return insertedCount;
+  }
+
+  public int getMatchedCount() {
+    return matchedCount;
+  }
+
+  public int getRemovedCount() {
+    return removedCount;
+  }
+
+  public List<Upsert> getUpserts() {
+    return Collections.unmodifiableList(upserts);
+  }
+
+  /**
+   * @return result of each operation, in the order of the operations (null if not executed or in error).
+   */
+  public List<WriteResult> getResults() {
+    return Collections.unmodifiableList(results);
+  }
+
+  public List<WriteError> getErrors() {
+    List<WriteError> sorted = new ArrayList<WriteError>(errors);
+    Collections.sort(sorted);
+    return Collections.unmodifiableList(sorted);
+  }
+
+  @Override
+  public String toString() {
+    return "FongoBulkWriteResult{" +
+        "insertedCount=" + insertedCount +
+        ", matchedCount=" + matchedCount +
+        ", removedCount=" + removedCount +
+        ", upserts=" + upserts +
+        ", errors=" + errors +
+        '}';
+  }
+
+  /**
+   * An upsert which inserted a document.
+   */
+  public static class Upsert {
+    private final int index;
+    private final Object id;
+
+    Upsert(int index, Object id) {
+      this.index = index;
+      this.id = id;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public Object getId() {
+      return id;
+    }
+
+    @Override
+    public String toString() {
+      return "Upsert{index=" + index + ", id=" + id + '}';
+    }
+  }
+
+  /**
+   * An operation in error.
+   */
+  public static class WriteError implements Comparable<WriteError> {
+    private final int index;
+    private final int code;
+    private final String message;
+
+    WriteError(int index, int code, String message) {
+      this.index = index;
+      this.code = code;
+      this.message = message;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public int getCode() {
+      return code;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+
+    @Override
+    public int compareTo(WriteError o) {
+      return index < o.index ? -1 : (index == o.index ? 0 : 1);
+    }
+
+    @Override
+    public String toString() {
+      return "WriteError{index=" + index + ", code=" + code + ", message='" + message + "'}";
+    }
+  }
+}
@@ -3,10 +3,12 @@ package com.mongodb;
 import com.github.fakemongo.Fongo;
 import com.github.fakemongo.impl.Aggregator;
 import com.github.fakemongo.impl.MapReduce;
+import com.github.fakemongo.impl.aggregation.CursorRegistry;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -24,6 +26,7 @@ public class FongoDB extends DB {
 
   private final Map<String, FongoDBCollection> collMap = Collections.synchronizedMap(new HashMap<String, FongoDBCollection>());
   private final Fongo fongo;
+  private final CursorRegistry cursorRegistry = new CursorRegistry();
 
   private MongoCredential mongoCredential;
 
@@ -64,11 +67,22 @@ public class FongoDB extends DB {
     return coll.findAndModify(query, fields, sort, remove, update, returnNew, upsert);
   }
 
-  private List<DBObject> doAggregateCollection(String collection, List<DBObject> pipeline) {
+  private Iterator<DBObject> doAggregateCollection(String collection, List<DBObject> pipeline, boolean allowDiskUse) {
     FongoDBCollection coll = doGetCollection(collection);
-    Aggregator aggregator = new Aggregator(this, coll, pipeline);
+    Aggregator aggregator = new Aggregator(this, coll, pipeline, allowDiskUse);
 
-    return aggregator.computeResult();
+    return aggregator.computeIterator();
+  }
+
+  /**
+   * Cursors of the aggregations run with the "cursor" option.
+   */
+  public CursorRegistry getCursorRegistry() {
+    return cursorRegistry;
+  }
+
+  private static int batchSize(Object batchSize) {
+    return batchSize instanceof Number ? ((Number) batchSize).intValue() : -1;
   }
 
   private DBObject doMapReduce(String collection, String map, String reduce, String finalize, DBObject out, DBObject query, DBObject sort, Number limit) {
@@ -179,14 +193,53 @@ public class FongoDB extends DB {
       CommandResult okResult = okResult();
       return okResult;
     } else if (cmd.containsField("aggregate")) {
-      @SuppressWarnings("unchecked") List<DBObject> result = doAggregateCollection((String) cmd.get("aggregate"), (List<DBObject>) cmd.get("pipeline"));
+      String collectionName = (String) cmd.get("aggregate");
+      if (Boolean.TRUE.equals(cmd.get("explain"))) {
+        @SuppressWarnings("unchecked") Aggregator aggregator = new Aggregator(this, doGetCollection(collectionName), (List<DBObject>) cmd.get("pipeline"));
+        CommandResult okResult = okResult();
+        BasicDBList stages = new BasicDBList();
+        stages.addAll(aggregator.explain());
+        okResult.put("stages", stages);
+        return okResult;
+      }
+      @SuppressWarnings("unchecked") Iterator<DBObject> result = doAggregateCollection(collectionName, (List<DBObject>) cmd.get("pipeline"), Boolean.TRUE.equals(cmd.get("allowDiskUse")));
       if (result == null) {
         return notOkErrorResult("can't aggregate");
       }
       CommandResult okResult = okResult();
-      BasicDBList list = new BasicDBList();
-      list.addAll(result);
-      okResult.put("result", list);
+      if (cmd.get("cursor") instanceof DBObject) {
+        // http://docs.mongodb.org/manual/reference/command/aggregate/ : the documents are read by batch.
+        okResult.put("cursor", cursorRegistry.open(getName() + "." + collectionName, result, batchSize(((DBObject) cmd.get("cursor")).get("batchSize"))));
+      } else {
+        BasicDBList list = new BasicDBList();
+        while (result.hasNext()) {
+          list.add(result.next());
+        }
+        okResult.put("result", list);
+      }
+      return okResult;
+    } else if (cmd.containsField("getMore")) {
+      long cursorId = ((Number) cmd.get("getMore")).longValue();
+      DBObject cursor = cursorRegistry.getMore(cursorId, batchSize(cmd.get("batchSize")));
+      if (cursor == null) {
+        return notOkErrorResult(43, "cursor id " + cursorId + " didn't exist on server.");
+      }
+      CommandResult okResult = okResult();
+      okResult.put("cursor", cursor);
+      return okResult;
+    } else if (cmd.containsField("killCursors")) {
+      BasicDBList killed = new BasicDBList();
+      BasicDBList unknown = new BasicDBList();
+      for (Object cursorId : (List) cmd.get("cursors")) {
+        if (cursorRegistry.kill(((Number) cursorId).longValue())) {
+          killed.add(cursorId);
+        } else {
+          unknown.add(cursorId);
+        }
+      }
+      CommandResult okResult = okResult();
+      okResult.put("cursorsKilled", killed);
+      okResult.put("cursorsUnknown", unknown);
       return okResult;
     } else if (cmd.containsField("findAndModify")) {
       DBObject result = findAndModify((String) cmd.get("findAndModify"), (DBObject) cmd.get("query"), (DBObject) cmd.get("sort"), Boolean.TRUE.equals(cmd.get("remove")),
@@ -17,12 +17,17 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.bson.BSON;
 import org.bson.types.Binary;
 import org.bson.types.ObjectId;
@@ -41,6 +46,7 @@ public class FongoDBCollection extends DBCollection {
   public static final String ID_KEY = "_id";
 
   private static final String ID_NAME_INDEX = "_id_";
+  private static final int MAX_SIZE = 100000;
   private final FongoDB fongoDb;
   private final ExpressionParser expressionParser;
   private final UpdateEngine updateEngine;
@@ -48,7 +54,16 @@ public class FongoDBCollection extends DBCollection {
   private final ExpressionParser.ObjectComparator objectComparator;
   // Fields/Index
   private final List<IndexAbstract> indexes = new ArrayList<IndexAbstract>();
-  private final IndexAbstract _idIndex;
+  private IndexAbstract _idIndex;
+  /**
+   * Taken for writing, with the monitor, by every change of the indexes. Taken for reading, without the monitor, by
+   * the findAndModify looking for a document to claim : they don't wait for each other.
+   */
+  private final ReentrantReadWriteLock indexesLock = new ReentrantReadWriteLock();
+  /**
+   * Ids of the documents being modified by a findAndModify : the other findAndModify skip them without waiting.
+   */
+  private final ConcurrentMap<Object, Boolean> claims = new ConcurrentHashMap<Object, Boolean>();
 
   public FongoDBCollection(FongoDB db, String name) {
     super(db, name);
@@ -84,20 +99,177 @@ public class FongoDBCollection extends DBCollection {
 
   @Override
   public synchronized WriteResult insert(List<DBObject> toInsert, WriteConcern concern, DBEncoder encoder) {
+    // Normalize all the batch first.
+    List<DBObject> batch = new ArrayList<DBObject>(toInsert.size());
     for (DBObject obj : toInsert) {
-      DBObject cloned = filterLists(Util.cloneIdFirst(obj));
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("insert: " + cloned);
+      batch.add(prepareInsert(obj));
+    }
+
+    addAllToIndexes(batchSizeCheck(batch, concern), concern);
+    return new WriteResult(insertResult(toInsert.size()), concern);
+  }
+
+  /**
+   * Clone an object to insert, with the id as first field (generated if needed, and saved in the caller).
+   */
+  private DBObject prepareInsert(DBObject obj) {
+    // The id must be the first field, even when generated.
+    DBObject cloned = new BasicDBObject(ID_KEY, null);
+    cloned.putAll(filterLists(Util.cloneIdFirst(obj)));
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("insert: " + cloned);
+    }
+    ObjectId id = putIdIfNotPresent(cloned);
+    // Save the id field in the caller.
+    if (!(obj instanceof LazyDBObject) && obj.get(ID_KEY) == null) {
+      obj.put(ID_KEY, Util.clone(id));
+    }
+    return cloned;
+  }
+
+  /**
+   * Insert the part of the batch which fits in the collection, and throw if it doesn't fit.
+   */
+  private List<DBObject> batchSizeCheck(List<DBObject> batch, WriteConcern concern) {
+    int room = Math.max(0, MAX_SIZE + 1 - _idIndex.size());
+    if (batch.size() > room) {
+      addAllToIndexes(batch.subList(0, room), concern);
+      throw new FongoException("Whoa, hold up there.  Fongo's designed for lightweight testing.  100,000 items per collection max");
+    }
+    return batch;
+  }
+
+  /**
+   * Create a bulk write operation, executed in order and stopped at the first error.
+   */
+  public FongoBulkWriteOperation initializeOrderedBulkOperation() {
+    return new FongoBulkWriteOperation(this, true);
+  }
+
+  /**
+   * Create a bulk write operation, executed in any order even if an operation is in error.
+   */
+  public FongoBulkWriteOperation initializeUnorderedBulkOperation() {
+    return new FongoBulkWriteOperation(this, false);
+  }
+
+  /**
+   * Execute the requests of a bulk write operation, grouped by type.
+   * The filters are shared between all the requests.
+   */
+  synchronized FongoBulkWriteResult executeBulkWriteOperation(boolean ordered, List<FongoBulkWriteOperation.Request> requests, WriteConcern concern) {
+    FongoBulkWriteResult result = new FongoBulkWriteResult(requests.size());
+    Map<DBObject, Filter> filters = new HashMap<DBObject, Filter>();
+    for (List<Integer> group : groupBulkRequests(ordered, requests)) {
+      boolean success;
+      if (requests.get(group.get(0)).type == FongoBulkWriteOperation.Request.Type.INSERT) {
+        success = bulkInsert(ordered, requests, group, concern, result);
+      } else {
+        success = bulkWrite(ordered, requests, group, concern, filters, result);
+      }
+      if (!success && ordered) {
+        break;
+      }
+    }
+    LOG.debug("executeBulkWriteOperation() ordered:{}, result:{}", ordered, result);
+    if (!result.getErrors().isEmpty() && enforceDuplicates(concern)) {
+      throw new FongoBulkWriteException(result);
+    }
+    return result;
+  }
+
+  /**
+   * Ordered : group consecutive requests of the same type. Unordered : one group by type.
+   *
+   * @return positions of the requests, by group.
+   */
+  private static List<List<Integer>> groupBulkRequests(boolean ordered, List<FongoBulkWriteOperation.Request> requests) {
+    List<List<Integer>> groups = new ArrayList<List<Integer>>();
+    if (ordered) {
+      List<Integer> group = null;
+      for (int i = 0; i < requests.size(); i++) {
+        if (group == null || requests.get(group.get(0)).type != requests.get(i).type) {
+          group = new ArrayList<Integer>();
+          groups.add(group);
+        }
+        group.add(i);
       }
-      ObjectId id = putIdIfNotPresent(cloned);
-      // Save the id field in the caller.
-      if (!(obj instanceof LazyDBObject) && obj.get(ID_KEY) == null) {
-        obj.put(ID_KEY, Util.clone(id));
+    } else {
+      for (FongoBulkWriteOperation.Request.Type type : FongoBulkWriteOperation.Request.Type.values()) {
+        List<Integer> group = new ArrayList<Integer>();
+        for (int i = 0; i < requests.size(); i++) {
+          if (requests.get(i).type == type) {
+            group.add(i);
+          }
+        }
+        if (!group.isEmpty()) {
+          groups.add(group);
+        }
       }
+    }
+    return groups;
+  }
 
-      putSizeCheck(cloned, concern);
+  /**
+   * Insert a group of documents as one batch.
+   *
+   * @return false if an insert is in error.
+   */
+  private boolean bulkInsert(boolean ordered, List<FongoBulkWriteOperation.Request> requests, List<Integer> group, WriteConcern concern, FongoBulkWriteResult result) {
+    List<DBObject> batch = new ArrayList<DBObject>(group.size());
+    for (int index : group) {
+      batch.add(prepareInsert(requests.get(index).document));
     }
-    return new WriteResult(insertResult(toInsert.size()), concern);
+    batch = batchSizeCheck(batch, concern);
+
+    boolean success = true;
+    int start = 0;
+    while (start < batch.size()) {
+      int duplicate = addValidToIndexes(batch.subList(start, batch.size()));
+      int end = duplicate < 0 ? batch.size() : start + duplicate;
+      for (int i = start; i < end; i++) {
+        result.inserted(group.get(i), new WriteResult(insertResult(1), concern));
+      }
+      if (duplicate < 0) {
+        break;
+      }
+      if (enforceDuplicates(concern)) {
+        CommandResult error = duplicateKeyError(batch.get(end));
+        result.error(group.get(end), error.getCode(), error.getErrorMessage());
+        success = false;
+        if (ordered) {
+          break;
+        }
+      }
+      start = end + 1;
+    }
+    return success;
+  }
+
+  /**
+   * Execute a group of updates or removes.
+   *
+   * @return false if an operation is in error.
+   */
+  private boolean bulkWrite(boolean ordered, List<FongoBulkWriteOperation.Request> requests, List<Integer> group, WriteConcern concern, Map<DBObject, Filter> filters, FongoBulkWriteResult result) {
+    boolean success = true;
+    for (int index : group) {
+      FongoBulkWriteOperation.Request request = requests.get(index);
+      try {
+        if (request.type == FongoBulkWriteOperation.Request.Type.UPDATE) {
+          result.updated(index, update(filterLists(request.query), filterLists(request.document), request.upsert, request.multi, concern, filters));
+        } else {
+          result.removed(index, remove(filterLists(request.query), request.multi, concern, filters));
+        }
+      } catch (MongoException e) {
+        result.error(index, e.getCode(), e.getMessage());
+        success = false;
+        if (ordered) {
+          break;
+        }
+      }
+    }
+    return success;
   }
 
   boolean enforceDuplicates(WriteConcern concern) {
@@ -122,7 +294,7 @@ public class FongoDBCollection extends DBCollection {
   }
 
   public void putSizeCheck(DBObject obj, WriteConcern concern) {
-    if (_idIndex.size() > 100000) {
+    if (_idIndex.size() > MAX_SIZE) {
       throw new FongoException("Whoa, hold up there.  Fongo's designed for lightweight testing.  100,000 items per collection max");
     }
 
@@ -180,10 +352,15 @@ public class FongoDBCollection extends DBCollection {
   @Override
   public synchronized WriteResult update(DBObject q, DBObject o, boolean upsert, boolean multi, WriteConcern concern,
                                          DBEncoder encoder) throws MongoException {
+    return update(filterLists(q), filterLists(o), upsert, multi, concern, new HashMap<DBObject, Filter>(1));
+  }
 
-    q = filterLists(q);
-    o = filterLists(o);
-
+  /**
+   * @param q       query, with lists filtered.
+   * @param o       update, with lists filtered.
+   * @param filters cache of the filters by query, shared between operations.
+   */
+  private WriteResult update(DBObject q, DBObject o, boolean upsert, boolean multi, WriteConcern concern, Map<DBObject, Filter> filters) {
     if (LOG.isDebugEnabled()) {
       LOG.debug("update(" + q + ", " + o + ", " + upsert + ", " + multi + ")");
     }
@@ -196,6 +373,7 @@ public class FongoDBCollection extends DBCollection {
     int updatedDocuments = 0;
     boolean idOnlyUpdate = q.containsField(ID_KEY) && q.keySet().size() == 1;
     boolean updatedExisting = false;
+    Object upserted = null;
 
     if (idOnlyUpdate && isNotUpdateCommand(o)) {
       if (!o.containsField(ID_KEY)) {
@@ -207,13 +385,13 @@ public class FongoDBCollection extends DBCollection {
       addToIndexes(Util.clone(o), oldObjects.hasNext() ? oldObjects.next() : null, concern);
       updatedDocuments++;
     } else {
-      Filter filter = expressionParser.buildFilter(q);
+      Filter filter = buildFilter(q, filters);
       for (DBObject obj : filterByIndexes(q)) {
         if (filter.apply(obj)) {
-          DBObject newObject = Util.clone(obj);
-          updateEngine.doUpdate(newObject, o, q);
+          // Only the modified paths are copied.
+          DBObject newObject = updateEngine.applyUpdate(obj, o, q);
           // Check for uniqueness (throw MongoException if error)
-          addToIndexes(newObject, obj, concern);
+          replaceInIndexes(newObject, obj, concern);
 
           updatedDocuments++;
           updatedExisting = true;
@@ -226,9 +404,23 @@ public class FongoDBCollection extends DBCollection {
       if (updatedDocuments == 0 && upsert) {
         BasicDBObject newObject = createUpsertObject(q);
         fInsert(updateEngine.doUpdate(newObject, o, q), concern);
+        upserted = newObject.get(ID_KEY);
       }
     }
-    return new WriteResult(updateResult(updatedDocuments, updatedExisting), concern);
+    CommandResult result = updateResult(updatedDocuments, updatedExisting);
+    if (upserted != null) {
+      result.put("upserted", upserted);
+    }
+    return new WriteResult(result, concern);
+  }
+
+  private Filter buildFilter(DBObject query, Map<DBObject, Filter> filters) {
+    Filter filter = filters.get(query);
+    if (filter == null) {
+      filter = expressionParser.buildFilter(query);
+      filters.put(query, filter);
+    }
+    return filter;
   }
 
 
@@ -294,18 +486,29 @@ public class FongoDBCollection extends DBCollection {
 
   @Override
   public synchronized WriteResult remove(DBObject o, WriteConcern concern, DBEncoder encoder) throws MongoException {
-    o = filterLists(o);
+    return remove(filterLists(o), true, concern, new HashMap<DBObject, Filter>(1));
+  }
+
+  /**
+   * @param o       query, with lists filtered.
+   * @param multi   false to remove only the first matching object.
+   * @param filters cache of the filters by query, shared between operations.
+   */
+  private WriteResult remove(DBObject o, boolean multi, WriteConcern concern, Map<DBObject, Filter> filters) {
     if (LOG.isDebugEnabled()) {
       LOG.debug("remove: " + o);
     }
     int updatedDocuments = 0;
     Collection<DBObject> objectsByIndex = filterByIndexes(o);
-    Filter filter = expressionParser.buildFilter(o);
+    Filter filter = buildFilter(o, filters);
     List<DBObject> ids = new ArrayList<DBObject>();
     // Double pass, objectsByIndex can be not "objects"
     for (DBObject object : objectsByIndex) {
       if (filter.apply(object)) {
         ids.add(object);
+        if (!multi) {
+          break;
+        }
       }
     }
     // Real remove.
@@ -360,7 +563,12 @@ public class FongoDBCollection extends DBCollection {
         }
         return;
       }
-      indexes.add(index);
+      indexesLock.writeLock().lock();
+      try {
+        indexes.add(index);
+      } finally {
+        indexesLock.writeLock().unlock();
+      }
     } catch (MongoException me) {
       fongoDb.errorResult(me.getCode(), me.getMessage()).throwOnError();
     }
@@ -407,10 +615,12 @@ public class FongoDBCollection extends DBCollection {
     if (ref.containsField("$maxScan")) {
       maxScan = ((Number) ref.get("$maxScan")).longValue();
     }
+    boolean explain = Boolean.TRUE.equals(ref.get("$explain"));
     if (ref.containsField("$query")) {
       ref = (DBObject) ref.get("$query");
     }
 
+    long startTime = System.currentTimeMillis();
     Filter filter = expressionParser.buildFilter(ref);
     int foundCount = 0;
     int upperLimit = Integer.MAX_VALUE;
@@ -418,9 +628,9 @@ public class FongoDBCollection extends DBCollection {
       upperLimit = limit;
     }
 
-    Collection<DBObject> objectsFromIndex = filterByIndexes(ref);
     List<DBObject> results = new ArrayList<DBObject>();
     List objects = idsIn(ref);
+    boolean sortById = false;
     if (!objects.isEmpty()) {
       if (!(ref.get(ID_KEY) instanceof DBObject)) {
         // Special case : find({id:<val}) doesn't handle skip...
@@ -431,13 +641,22 @@ public class FongoDBCollection extends DBCollection {
         orderby = new BasicDBObject(ID_KEY, 1);
       } else {
         // Special case : if order by is wrong (field doesn't exist), the sort must be directed by _id.
-        objectsFromIndex = sortObjects(new BasicDBObject(ID_KEY, 1), objectsFromIndex);
+        sortById = true;
       }
     }
+
+    // Covered query : the keys of the index are enough, objects are not visited.
+    IndexAbstract coveringIndex = searchCoveringIndex(ref, fields, orderby);
+    Collection<DBObject> objectsFromIndex = coveringIndex == null ? filterByIndexes(ref) : coveringIndex.retrieveKeys(ref);
+    if (sortById) {
+      objectsFromIndex = sortObjects(new BasicDBObject(ID_KEY, 1), objectsFromIndex);
+    }
     int seen = 0;
+    int scanned = 0;
     Iterable<DBObject> objectsToSearch = sortObjects(orderby, objectsFromIndex);
     for (Iterator<DBObject> iter = objectsToSearch.iterator(); iter.hasNext() && foundCount <= upperLimit && maxScan-- > 0; ) {
       DBObject dbo = iter.next();
+      scanned++;
       if (filter.apply(dbo)) {
         if (seen++ >= numToSkip) {
           foundCount++;
@@ -463,9 +682,109 @@ public class FongoDBCollection extends DBCollection {
 
     LOG.debug("found results {}", results);
 
+    if (explain) {
+      IndexAbstract usedIndex = coveringIndex == null ? searchIndex(ref) : coveringIndex;
+      return Collections.singletonList(explainResult(usedIndex, coveringIndex != null, orderby, results.size(), scanned, System.currentTimeMillis() - startTime)).iterator();
+    }
     return results.iterator();
   }
 
+  /**
+   * Build the result of a query executed with "$explain".
+   * {@see http://docs.mongodb.org/manual/reference/method/cursor.explain/}
+   */
+  private DBObject explainResult(IndexAbstract index, boolean indexOnly, DBObject orderby, int n, int scanned, long millis) {
+    BasicDBObject result = new BasicDBObject();
+    result.put("cursor", index == null ? "BasicCursor" : "BtreeCursor " + index.getName());
+    result.put("isMultiKey", index != null && index.isMultiKey());
+    result.put("n", n);
+    result.put("nscannedObjects", indexOnly ? 0 : scanned);
+    result.put("nscanned", scanned);
+    result.put("scanAndOrder", orderby != null && !orderby.keySet().isEmpty());
+    result.put("indexOnly", indexOnly);
+    result.put("millis", millis);
+    return result;
+  }
+
+  /**
+   * Search an index whose keys hold all the fields of the query, the projection and the sort.
+   * Results of a query on such index can be built from the keys only.
+   * The fields of the query must be the leading fields of the index, like {userId: 1} for an index {userId: 1, ts: 1}
+   * holding all the objects.
+   *
+   * @return the covering index, or null.
+   */
+  private IndexAbstract searchCoveringIndex(DBObject query, DBObject fields, DBObject orderby) {
+    if (nonIdCollection || fields == null || fields.keySet().isEmpty() || query.keySet().isEmpty()) {
+      return null;
+    }
+    for (IndexAbstract index : indexes) {
+      if (!index.isGeoIndex() && isPrefix(query.keySet(), index.getFields()) && holdsAll(index, query)
+          && covers(index.getFields(), fields, orderby)) {
+        LOG.debug("searchCoveringIndex() found index {} for query {} and projection {}", index, query, fields);
+        return index;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * An object without all the fields of an index is not in the index : a query on only the leading fields may match
+   * objects outside of it, unless the index holds every object.
+   *
+   * @return true if the index holds all the objects the query can match.
+   */
+  private boolean holdsAll(IndexAbstract index, DBObject query) {
+    return query.keySet().size() == index.getFields().size() || (!index.isMultiKey() && index.size() == _idIndex.size());
+  }
+
+  /**
+   * @return true if the fields are the first fields of the index, in any order.
+   */
+  private static boolean isPrefix(Set<String> fields, Set<String> indexFields) {
+    if (fields.size() > indexFields.size()) {
+      return false;
+    }
+    Iterator<String> iterator = indexFields.iterator();
+    for (int i = 0; i < fields.size(); i++) {
+      if (!fields.contains(iterator.next())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the projection and the sort only need the fields of the index.
+   */
+  private static boolean covers(Set<String> indexFields, DBObject fields, DBObject orderby) {
+    if (orderby != null && !indexFields.containsAll(orderby.keySet())) {
+      return false;
+    }
+    boolean idIncluded = true;
+    int inclusionCount = 0;
+    for (String field : fields.keySet()) {
+      Object value = fields.get(field);
+      boolean included;
+      if (value instanceof Number) {
+        included = ((Number) value).intValue() > 0;
+      } else if (value instanceof Boolean) {
+        included = (Boolean) value;
+      } else {
+        // Projection operators need the object.
+        return false;
+      }
+      if (ID_KEY.equals(field)) {
+        idIncluded = included;
+      } else if (included && indexFields.contains(field)) {
+        inclusionCount++;
+      } else {
+        return false;
+      }
+    }
+    return idIncluded ? indexFields.contains(ID_KEY) : inclusionCount > 0;
+  }
+
   /**
    * Return "objects.values()" if no index found.
    *
@@ -665,6 +984,10 @@ public class FongoDBCollection extends DBCollection {
     return ret;
   }
 
+  private Comparator<DBObject> sortComparator(final DBObject orderby) {
+    return expressionParser.buildDBObjectComparator(orderby);
+  }
+
   public Collection<DBObject> sortObjects(final DBObject orderby, final Collection<DBObject> objects) {
     Collection<DBObject> objectsToSearch = objects;
     if (orderby != null) {
@@ -672,24 +995,7 @@ public class FongoDBCollection extends DBCollection {
       if (!orderbyKeySet.isEmpty()) {
         DBObject[] objectsToSort = objects.toArray(new DBObject[objects.size()]);
 
-        Arrays.sort(objectsToSort, new Comparator<DBObject>() {
-          @Override
-          public int compare(DBObject o1, DBObject o2) {
-            for (String sortKey : orderbyKeySet) {
-              final List<String> path = Util.split(sortKey);
-              int sortDirection = (Integer) orderby.get(sortKey);
-
-              List<Object> o1list = expressionParser.getEmbeddedValues(path, o1);
-              List<Object> o2list = expressionParser.getEmbeddedValues(path, o2);
-
-              int compareValue = expressionParser.compareLists(o1list, o2list) * sortDirection;
-              if (compareValue != 0) {
-                return compareValue;
-              }
-            }
-            return 0;
-          }
-        });
+        Arrays.sort(objectsToSort, sortComparator(orderby));
         objectsToSearch = Arrays.asList(objectsToSort);
       }
     }
@@ -703,14 +1009,20 @@ public class FongoDBCollection extends DBCollection {
   @Override
   public synchronized long getCount(DBObject query, DBObject fields, long limit, long skip) {
     query = filterLists(query);
+    long count = countFromIndexes(query);
+    if (count >= 0) {
+      count = Math.max(0, count - skip);
+      return limit > 0 ? Math.min(count, limit) : count;
+    }
+
     Filter filter = query == null ? ExpressionParser.AllFilter : expressionParser.buildFilter(query);
-    long count = 0;
+    count = 0;
     long upperLimit = Long.MAX_VALUE;
     if (limit > 0) {
       upperLimit = limit;
     }
     int seen = 0;
-    for (Iterator<DBObject> iter = filterByIndexes(query).iterator(); iter.hasNext() && count <= upperLimit; ) {
+    for (Iterator<DBObject> iter = filterByIndexes(query).iterator(); iter.hasNext() && count < upperLimit; ) {
       DBObject value = iter.next();
       if (filter.apply(value)) {
         if (seen++ >= skip) {
@@ -721,66 +1033,193 @@ public class FongoDBCollection extends DBCollection {
     return count;
   }
 
+  /**
+   * Count without visiting the objects, when the query only use the fields of an index.
+   *
+   * @return the count, or -1 if the objects must be scanned.
+   */
+  private long countFromIndexes(DBObject query) {
+    if (query == null || query.keySet().isEmpty()) {
+      return _idIndex.size();
+    }
+    IndexAbstract index = searchIndex(query);
+    if (index == null || index.isGeoIndex() || !index.getFields().containsAll(query.keySet())) {
+      return -1;
+    }
+    return index.count(query);
+  }
+
   @Override
   public synchronized long getCount(DBObject query, DBObject fields, ReadPreference readPrefs) {
     //as we're in memory we don't need to worry about readPrefs
     return getCount(query, fields, 0, 0);
   }
 
+  /**
+   * The document is claimed without the monitor : several findAndModify look for their document at the same time, each
+   * one skips the documents claimed by the others. Only the change of the indexes is done under the monitor.
+   */
   @Override
-  public synchronized DBObject findAndModify(DBObject query, DBObject fields, DBObject sort, boolean remove, DBObject update, boolean returnNew, boolean upsert) {
+  public DBObject findAndModify(DBObject query, DBObject fields, DBObject sort, boolean remove, DBObject update, boolean returnNew, boolean upsert) {
     LOG.debug("findAndModify({}, {}, {}, {}, {}, {}, {}", query, fields, sort, remove, update, returnNew, upsert);
     query = filterLists(query);
     update = filterLists(update);
     Filter filter = expressionParser.buildFilter(query);
 
-    Iterable<DBObject> objectsToSearch = sortObjects(sort, filterByIndexes(query));
-    DBObject beforeObject = null;
-    DBObject afterObject = null;
-    for (DBObject dbo : objectsToSearch) {
-      if (filter.apply(dbo)) {
-        beforeObject = dbo;
-        if (!remove) {
-          afterObject = Util.clone(beforeObject);
-          updateEngine.doUpdate(afterObject, update, query);
-          addToIndexes(afterObject, beforeObject, getWriteConcern());
-          break;
-        } else {
-          remove(dbo);
-          return dbo;
+    while (true) {
+      DBObject beforeObject;
+      indexesLock.readLock().lock();
+      try {
+        beforeObject = searchFirst(query, sort, filter, true);
+      } finally {
+        indexesLock.readLock().unlock();
+      }
+      if (beforeObject == null) {
+        synchronized (this) {
+          // Nothing changes under the monitor : search again for an inserted document, or upsert.
+          beforeObject = searchFirst(query, sort, filter, true);
+          if (beforeObject == null) {
+            if (!upsert || remove) {
+              return null;
+            }
+            if (searchFirst(query, sort, filter, false) != null) {
+              // Claimed by another findAndModify, which may change it : no upsert before its end.
+              continue;
+            }
+            DBObject afterObject = createUpsertObject(query);
+            fInsert(updateEngine.doUpdate(afterObject, update, query), getWriteConcern());
+            return applyProjections(returnNew ? afterObject : new BasicDBObject(), fields);
+          }
         }
       }
+
+      Object id = beforeObject.get(ID_KEY);
+      try {
+        DBObject afterObject = remove ? null : updateEngine.applyUpdate(beforeObject, update, query);
+        synchronized (this) {
+          if (!isCurrent(beforeObject)) {
+            // Changed by an update since it was claimed.
+            continue;
+          }
+          if (remove) {
+            remove(beforeObject);
+            return Util.clone(beforeObject);
+          }
+          replaceInIndexes(afterObject, beforeObject, getWriteConcern());
+        }
+        // The stored versions share their values : the caller gets its own copy.
+        return applyProjections(Util.clone(returnNew ? afterObject : beforeObject), fields);
+      } finally {
+        claims.remove(id);
+      }
+    }
+  }
+
+  /**
+   * @return true if the object is still the stored version of its document.
+   */
+  private boolean isCurrent(DBObject object) {
+    for (Object current : _idIndex.retrieveObjects(new BasicDBObject(ID_KEY, object.get(ID_KEY)))) {
+      if (current == object) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return false if the document is already claimed by another findAndModify.
+   */
+  private boolean claim(DBObject object, boolean claim) {
+    return !claim || claims.putIfAbsent(object.get(ID_KEY), Boolean.TRUE) == null;
+  }
+
+  /**
+   * Search the first object matching the query in sort order, without sorting all the candidates.
+   * Must be called with the monitor or the read lock of the indexes.
+   *
+   * @param claim true to skip the objects claimed, and claim the object found.
+   * @return the first object, or null if none match.
+   */
+  private DBObject searchFirst(DBObject query, DBObject sort, Filter filter, boolean claim) {
+    IndexAbstract queryIndex = query == null ? null : searchIndex(query);
+    Iterable<DBObject> objectsToSearch = searchInSortIndex(query, sort, queryIndex);
+    if (objectsToSearch == null) {
+      objectsToSearch = filterByIndexes(query);
+      if (sort != null && !sort.keySet().isEmpty()) {
+        Comparator<DBObject> comparator = sortComparator(sort);
+        while (true) {
+          // Keep the smallest, the first one in case of equality.
+          DBObject first = null;
+          for (DBObject dbo : objectsToSearch) {
+            if (filter.apply(dbo) && (first == null || comparator.compare(dbo, first) < 0) && !(claim && claims.containsKey(dbo.get(ID_KEY)))) {
+              first = dbo;
+            }
+          }
+          if (first == null || claim(first, claim)) {
+            return first;
+          }
+        }
+      }
+    }
+    for (DBObject dbo : objectsToSearch) {
+      if (filter.apply(dbo) && claim(dbo, claim)) {
+        return dbo;
+      }
     }
-    if (beforeObject != null && !returnNew) {
-      return applyProjections(beforeObject, fields);
+    return null;
+  }
+
+  /**
+   * For a sort on one field, walk the objects in the order of an index on this field : no sort, and the walk stops at
+   * the first matching object. Not used if another index is better for the query.
+   *
+   * @return objects in sort order (still to filter), or null if no index can be used.
+   */
+  private Iterable<DBObject> searchInSortIndex(DBObject query, DBObject sort, IndexAbstract queryIndex) {
+    if (sort == null || sort.keySet().size() != 1) {
+      return null;
     }
-    if (beforeObject == null && upsert && !remove) {
-      beforeObject = new BasicDBObject();
-      afterObject = createUpsertObject(query);
-      fInsert(updateEngine.doUpdate(afterObject, update, query), getWriteConcern());
+    String sortKey = sort.keySet().iterator().next();
+    Object direction = sort.get(sortKey);
+    if (!(direction instanceof Number)) {
+      return null;
     }
-    if (returnNew) {
-      return applyProjections(afterObject, fields);
-    } else {
-      return applyProjections(beforeObject, fields);
+    for (IndexAbstract index : indexes) {
+      // All objects must be in the index, and arrays are not sorted like their elements.
+      if ((queryIndex == null || queryIndex == index) && !index.isGeoIndex() && index.getFields().size() == 1
+          && index.getFields().contains(sortKey) && !index.isMultiKey() && index.size() == _idIndex.size()) {
+        boolean reverse = (((Number) direction).intValue() > 0) != index.isAsc();
+        @SuppressWarnings("unchecked") Iterable<DBObject> objects = index.objectsInKeyOrder(query, reverse);
+        if (objects != null) {
+          LOG.debug("searchInSortIndex() use index {} for sort {}", index.getName(), sort);
+          return objects;
+        }
+      }
     }
+    return null;
   }
 
   @Override
   public synchronized List distinct(String key, DBObject query) {
     query = filterLists(query);
     Set<Object> results = new LinkedHashSet<Object>();
+    IndexAbstract distinctIndex = searchDistinctIndex(key, query);
+    if (distinctIndex != null) {
+      for (DBObject indexKey : (List<DBObject>) distinctIndex.retrieveDistinctKeys(query == null ? new BasicDBObject() : query)) {
+        addDistinctValue(results, indexKey.get(key));
+      }
+      //noinspection unchecked
+      return new ArrayList(results);
+    }
+
     Filter filter = expressionParser.buildFilter(query);
     for (Iterator<DBObject> iter = filterByIndexes(query).iterator(); iter.hasNext(); ) {
       DBObject value = iter.next();
       if (filter.apply(value)) {
         List<Object> keyValues = expressionParser.getEmbeddedValues(key, value);
         for (Object keyValue : keyValues) {
-          if (keyValue instanceof List) {
-            results.addAll((List) keyValue);
-          } else {
-            results.add(keyValue);
-          }
+          addDistinctValue(results, keyValue);
         }
       }
     }
@@ -788,21 +1227,55 @@ public class FongoDBCollection extends DBCollection {
     return new ArrayList(results);
   }
 
+  private static void addDistinctValue(Set<Object> results, Object keyValue) {
+    if (keyValue instanceof List) {
+      results.addAll((List) keyValue);
+    } else {
+      results.add(keyValue);
+    }
+  }
+
+  /**
+   * Search a single field index on {@code key} which can answer the query alone.
+   * An ascending index is preferred, to return the values in sorted order.
+   *
+   * @return the index, or null if the documents must be scanned.
+   */
+  private IndexAbstract searchDistinctIndex(String key, DBObject query) {
+    if (key.contains(".") || (query != null && !Collections.singleton(key).containsAll(query.keySet()))) {
+      return null;
+    }
+    IndexAbstract result = null;
+    for (IndexAbstract index : indexes) {
+      if (!index.isGeoIndex() && index.getFields().size() == 1 && index.getFields().contains(key)) {
+        if (result == null || index.isAsc()) {
+          result = index;
+        }
+      }
+    }
+    return result;
+  }
+
   protected synchronized void _dropIndexes(String name) throws MongoException {
     DBCollection indexColl = fongoDb.getCollection("system.indexes");
-    indexColl.remove(new BasicDBObject("name", name));
-    ListIterator<IndexAbstract> iterator = indexes.listIterator();
-    while (iterator.hasNext()) {
-      IndexAbstract index = iterator.next();
-      if (index.getName().equals(name)) {
-        iterator.remove();
-        break;
+    indexColl.remove(new BasicDBObject("name", name).append("ns", getFullName()));
+    indexesLock.writeLock().lock();
+    try {
+      ListIterator<IndexAbstract> iterator = indexes.listIterator();
+      while (iterator.hasNext()) {
+        IndexAbstract index = iterator.next();
+        if (index.getName().equals(name)) {
+          iterator.remove();
+          break;
+        }
       }
+    } finally {
+      indexesLock.writeLock().unlock();
     }
   }
 
   protected synchronized void _dropIndexes() {
-    List<DBObject> indexes = fongoDb.getCollection("system.indexes").find().toArray();
+    List<DBObject> indexes = fongoDb.getCollection("system.indexes").find(new BasicDBObject("ns", getFullName())).toArray();
     // Two step for no concurrent modification exception
     for (DBObject index : indexes) {
       if (!ID_NAME_INDEX.equals(index.get("name").toString())) {
@@ -813,18 +1286,92 @@ public class FongoDBCollection extends DBCollection {
 
   @Override
   public void drop() {
-    _idIndex.clear();
+    indexesLock.writeLock().lock();
+    try {
+      _idIndex.clear();
+    } finally {
+      indexesLock.writeLock().unlock();
+    }
     _dropIndexes(); // _idIndex must stay.
     fongoDb.removeCollection(this);
   }
 
+  /**
+   * Drop a collection never seen by the user, with all its indexes.
+   */
+  public void dropTemporary() {
+    drop();
+    fongoDb.getCollection("system.indexes").remove(new BasicDBObject("ns", getFullName()));
+  }
+
+  /**
+   * Replace the documents of this collection by the documents of a temporary collection, then drop the temporary
+   * collection, like a renameCollection with dropTarget : the readers see all the old documents or all the new ones.
+   * The indexes are moved with the documents, the temporary collection must have the same indexes.
+   *
+   * @param temporary collection not used by anyone else.
+   */
+  public synchronized void replaceWith(FongoDBCollection temporary) {
+    synchronized (temporary) {
+      indexesLock.writeLock().lock();
+      try {
+        List<IndexAbstract> oldIndexes = new ArrayList<IndexAbstract>(indexes);
+        IndexAbstract oldIdIndex = _idIndex;
+        indexes.clear();
+        indexes.addAll(temporary.indexes);
+        _idIndex = temporary._idIndex;
+        temporary.indexes.clear();
+        temporary.indexes.addAll(oldIndexes);
+        temporary._idIndex = oldIdIndex;
+      } finally {
+        indexesLock.writeLock().unlock();
+      }
+      temporary.dropTemporary();
+    }
+    this.fongoDb.addCollection(this);
+  }
+
+  /**
+   * Index to find the documents by the value of a field, for a join.
+   *
+   * @return the name of the index, null if no index can be used.
+   */
+  public synchronized String indexFor(String field) {
+    IndexAbstract index = searchIndex(new BasicDBObject(field, 1));
+    return index == null || index.isGeoIndex() ? null : index.getName();
+  }
+
+  /**
+   * Documents with one of the values in a field, found with the index of the field : no query plan, only the
+   * documents found are cloned.
+   *
+   * @return null if no index can be used, or if a value is null (documents without the field are not indexed).
+   */
+  public synchronized List<DBObject> findByIndex(String field, Collection<?> values) {
+    IndexAbstract index = searchIndex(new BasicDBObject(field, 1));
+    if (index == null || index.isGeoIndex() || values.contains(null)) {
+      return null;
+    }
+    Set<DBObject> found = Collections.newSetFromMap(new IdentityHashMap<DBObject, Boolean>());
+    List<DBObject> results = new ArrayList<DBObject>();
+    for (Object value : values) {
+      @SuppressWarnings("unchecked") Collection<DBObject> objects = index.retrieveObjects(new BasicDBObject(field, value));
+      for (DBObject object : objects) {
+        if (found.add(object)) {
+          results.add(Util.clone(object));
+        }
+      }
+    }
+    return results;
+  }
+
   /**
    * Search the most restrictive index for query.
    *
    * @param query query for restriction
    * @return the most restrictive index, or null.
    */
-  private synchronized IndexAbstract searchIndex(DBObject query) {
+  private IndexAbstract searchIndex(DBObject query) {
     IndexAbstract result = null;
     int foundCommon = -1;
     Set<String> queryFields = query.keySet();
@@ -875,6 +1422,17 @@ public class FongoDBCollection extends DBCollection {
    * @param oldObject null if insert, old object if update.
    */
   private synchronized void addToIndexes(DBObject object, DBObject oldObject, WriteConcern concern) {
+    replaceInIndexes(Util.cloneIdFirst(object), oldObject, concern);
+  }
+
+  /**
+   * Add entry to index, without copy : the new object must have the id first and must not be shared with the caller.
+   * If necessary, remove oldObject from index.
+   *
+   * @param object    new object to insert.
+   * @param oldObject null if insert, old object if update.
+   */
+  private synchronized void replaceInIndexes(DBObject object, DBObject oldObject, WriteConcern concern) {
     // Ensure "insert/update" create collection into "fongoDB"
     this.fongoDb.addCollection(this);
     Set<String> queryFields = object.keySet();
@@ -890,15 +1448,82 @@ public class FongoDBCollection extends DBCollection {
       }
     }
 
-    DBObject idFirst = Util.cloneIdFirst(object);
     Set<String> oldQueryFields = oldObject == null ? Collections.<String>emptySet() : oldObject.keySet();
+    indexesLock.writeLock().lock();
+    try {
+      for (IndexAbstract index : indexes) {
+        if (index.canHandle(queryFields)) {
+          index.addOrUpdate(object, oldObject);
+        } else if (index.canHandle(oldQueryFields))
+          // In case of update and removing a field, we must remove from the index.
+          index.remove(oldObject);
+      }
+    } finally {
+      indexesLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Add new objects to the indexes, one index after the other.
+   * Uniqueness is checked for all the batch before, a duplicate stops the batch if enforced, or is ignored.
+   *
+   * @param objects new objects, normalized and with the id first.
+   */
+  private synchronized void addAllToIndexes(List<DBObject> objects, WriteConcern concern) {
+    int start = 0;
+    while (start < objects.size()) {
+      int duplicate = addValidToIndexes(objects.subList(start, objects.size()));
+      if (duplicate < 0) {
+        return;
+      }
+      start += duplicate;
+      if (enforceDuplicates(concern)) {
+        duplicateKeyError(objects.get(start)).throwOnError();
+      }
+      start++; // silently ignore.
+    }
+  }
+
+  /**
+   * Add new objects to the indexes, until the first one which doesn't respect uniqueness.
+   *
+   * @param objects new objects, normalized and with the id first.
+   * @return position of the first duplicate (not added), -1 if all objects are added.
+   */
+  private int addValidToIndexes(List<DBObject> objects) {
+    // Ensure "insert" create collection into "fongoDB"
+    this.fongoDb.addCollection(this);
+    int end = objects.size();
     for (IndexAbstract index : indexes) {
-      if (index.canHandle(queryFields)) {
-        index.addOrUpdate(idFirst, oldObject);
-      } else if (index.canHandle(oldQueryFields))
-        // In case of update and removing a field, we must remove from the index.
-        index.remove(oldObject);
+      int duplicate = index.firstDuplicate(objects.subList(0, end));
+      if (duplicate >= 0) {
+        end = duplicate;
+      }
+    }
+
+    List<DBObject> valid = objects.subList(0, end);
+    indexesLock.writeLock().lock();
+    try {
+      for (IndexAbstract index : indexes) {
+        index.addAll(valid);
+      }
+    } finally {
+      indexesLock.writeLock().unlock();
     }
+    return end == objects.size() ? -1 : end;
+  }
+
+  /**
+   * @param object new object which doesn't respect the uniqueness of an index.
+   */
+  private CommandResult duplicateKeyError(DBObject object) {
+    for (IndexAbstract index : indexes) {
+      @SuppressWarnings("unchecked") List<List<Object>> error = index.checkAddOrUpdate(object, null);
+      if (index.canHandle(object.keySet()) && !error.isEmpty()) {
+        return fongoDb.errorResult(11001, "E11000 duplicate key error index: " + this.getFullName() + "." + index.getName() + "  dup key : {" + error + " }");
+      }
+    }
+    throw new IllegalStateException("no duplicate key for " + object);
   }
 
   /**
@@ -908,10 +1533,15 @@ public class FongoDBCollection extends DBCollection {
    */
   private synchronized void removeFromIndexes(DBObject object) {
     Set<String> queryFields = object.keySet();
-    for (IndexAbstract index : indexes) {
-      if (index.canHandle(queryFields)) {
-        index.remove(object);
+    indexesLock.writeLock().lock();
+    try {
+      for (IndexAbstract index : indexes) {
+        if (index.canHandle(queryFields)) {
+          index.remove(object);
+        }
       }
+    } finally {
+      indexesLock.writeLock().unlock();
     }
   }
 
@@ -931,6 +1561,44 @@ public class FongoDBCollection extends DBCollection {
     return ((GeoIndex) matchingIndex).geoNear(query == null ? new BasicDBObject() : query, latLongs, limit == null ? 100 : limit.intValue(), spherical);
   }
 
+  /**
+   * Results of a geoNear read one at a time, nearest first : only the results read are cloned.
+   *
+   * @return the results as <code>{dis: distance, loc: location, obj: document}</code>.
+   */
+  public synchronized Iterator<DBObject> geoNearIterator(DBObject near, DBObject query, Number maxDistance, boolean spherical) {
+    IndexAbstract matchingIndex = searchGeoIndex(true);
+    if (matchingIndex == null) {
+      fongoDb.notOkErrorResult(-5, "no geo indices for geoNear").throwOnError();
+    }
+    //noinspection ConstantConditions
+    LOG.debug("geoNearIterator() near:{}, query:{}, maxDistance:{}, spherical:{}, use index:{}", near, query, maxDistance, spherical, matchingIndex.getName());
+
+    List<LatLong> latLongs = GeoUtil.latLon(Collections.<String>emptyList(), near);
+    final Iterator<DBObject> results = ((GeoIndex) matchingIndex).geoNearIterator(query == null ? new BasicDBObject() : query, latLongs, spherical, maxDistance == null ? Double.MAX_VALUE : maxDistance.doubleValue());
+    return new Iterator<DBObject>() {
+      @Override
+      public boolean hasNext() {
+        return results.hasNext();
+      }
+
+      @Override
+      public DBObject next() {
+        DBObject result = results.next();
+        synchronized (FongoDBCollection.this) {
+          result.put("loc", Util.clone(result.get("loc")));
+          result.put("obj", Util.clone((DBObject) result.get("obj")));
+        }
+        return result;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
   //Text search Emulation see http://docs.mongodb.org/manual/tutorial/search-for-text/ for mongo
   public synchronized DBObject text(String search, Number limit, DBObject project) {
     TextSearch ts = new TextSearch(this);
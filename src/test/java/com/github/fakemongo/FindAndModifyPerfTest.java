@@ -0,0 +1,69 @@
+package com.github.fakemongo;
+
+import ch.qos.logback.classic.Level;
+import com.github.fakemongo.impl.ExpressionParser;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Job queue benchmark : workers claim documents with findAndModify, by priority.
+ */
+public class FindAndModifyPerfTest {
+  private static final int SIZE = 5000;
+
+  public static void main(String[] args) throws Exception {
+    // Desactivate logback
+    ch.qos.logback.classic.Logger log = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(FongoDBCollection.class);
+    log.setLevel(Level.ERROR);
+    log = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(ExpressionParser.class);
+    log.setLevel(Level.ERROR);
+
+    System.out.println("Warming jvm");
+    for (int i = 0; i < 5; i++) {
+      doit(2000, 2);
+    }
+    System.out.println("Warming jvm done.");
+    for (int workers = 1; workers <= 8; workers *= 2) {
+      long startTime = System.currentTimeMillis();
+      int claimed = doit(SIZE, workers);
+      long took = Math.max(1, System.currentTimeMillis() - startTime);
+      System.out.println(workers + " workers : " + claimed + " claims in " + took + " ms, " + (claimed * 1000L / took) + " claims/s");
+    }
+  }
+
+  public static int doit(int size, int workers) throws InterruptedException {
+    Fongo fongo = new Fongo("fongo");
+    DB db = fongo.getDB("db");
+    final DBCollection collection = db.getCollection("queue");
+    collection.ensureIndex(new BasicDBObject("priority", 1));
+    for (int k = 0; k < size; k++) {
+      collection.insert(new BasicDBObject("_id", k).append("priority", (k * 31) % size).append("state", "new"));
+    }
+
+    final AtomicInteger claimed = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(workers);
+    for (int w = 0; w < workers; w++) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          DBObject query = new BasicDBObject("state", "new");
+          DBObject sort = new BasicDBObject("priority", 1);
+          DBObject update = new BasicDBObject("$set", new BasicDBObject("state", "taken"));
+          while (collection.findAndModify(query, null, sort, false, update, true, false) != null) {
+            claimed.incrementAndGet();
+          }
+          done.countDown();
+        }
+      }).start();
+    }
+    done.await();
+    db.dropDatabase();
+    return claimed.get();
+  }
+}
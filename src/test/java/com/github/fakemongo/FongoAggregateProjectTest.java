@@ -9,7 +9,6 @@ import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import java.util.List;
 import static org.junit.Assert.*;
-import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -93,7 +92,6 @@ public class FongoAggregateProjectTest {
    * See http://docs.mongodb.org/manual/reference/aggregation/concat/
    */
   @Test
-  @Ignore // TODO(twillouer)
   public void testConcatNullOrMissingIfNull() {
     DBCollection coll = fongoRule.newCollection();
     fongoRule.insertJSON(coll, "[{ _id: 1, item: { sec: \"dessert\", category: \"pie\", type: \"apple\" } },\n" +
@@ -124,7 +122,6 @@ public class FongoAggregateProjectTest {
   }
 
   @Test
-  @Ignore // TODO(twillouer)
   public void testProjectDoenstSendArray() {
     DBCollection coll = fongoRule.newCollection();
     coll.insert(new BasicDBObject("a", Util.list(1, 2, 3)));
@@ -871,6 +868,37 @@ public class FongoAggregateProjectTest {
         new BasicDBObject("_id", 2).append("author", new BasicDBObject("name", "will").append("lastname", "del"))), result);
   }
 
+  @Test
+  public void shouldEvaluateNestedExpressionsInProjectAndGroupId() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("name", "Jon").append("lastname", "Hoff").append("_id", 1));
+    collection.insert(new BasicDBObject("name", "jon").append("_id", 2));
+    collection.insert(new BasicDBObject("name", "Will").append("lastname", "Del").append("_id", 3));
+
+    DBObject project = fongoRule.parseDBObject("{ $project: { _id: 0, author: { name: { $toLower: \"$name\" },\n" +
+        "                                         full: { $concat: [ \"$name\", \" \", { $ifNull: [ \"$lastname\", \"?\" ] } ] },\n" +
+        "                                         lastname: \"$lastname\" } } }");
+    DBObject group = fongoRule.parseDBObject("{ $group: { _id: { $toUpper: \"$author.name\" }, count: { $sum: 1 } } }");
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("_id", 1));
+    AggregationOutput output = collection.aggregate(project, group, sort);
+
+    assertTrue(output.getCommandResult().ok());
+    assertEquals(fongoRule.parse("[{ _id: \"JON\", count: 2 }, { _id: \"WILL\", count: 1 }]"), output.getCommandResult().get("result"));
+
+    output = collection.aggregate(project, new BasicDBObject("$match", new BasicDBObject("author.name", "jon")));
+    assertEquals(fongoRule.parse("[{ author: { name: \"jon\", full: \"Jon Hoff\", lastname: \"Hoff\" } },\n" +
+        " { author: { name: \"jon\", full: \"jon ?\" } }]"), output.getCommandResult().get("result"));
+  }
+
+  @Test
+  public void testUnsupportedOperatorMustBeAFailure() {
+    ExpectedMongoException.expectCommandFailure(exception, 15999);
+    DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{ _id: 1, a: 1, b: 2 }]");
+
+    coll.aggregate(fongoRule.parseDBObject("{ $project: { sum: { $add: [ \"$a\", \"$b\" ] } } }"));
+  }
+
   private DBCollection createTestCollection() {
     DBCollection collection = fongoRule.newCollection();
     collection.insert(new BasicDBObject("myId", "p0").append("date", 1));
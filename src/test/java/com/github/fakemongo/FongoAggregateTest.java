@@ -1,21 +1,32 @@
 package com.github.fakemongo;
 
 import com.github.fakemongo.impl.Util;
+import com.github.fakemongo.impl.aggregation.CursorRegistry;
+import com.github.fakemongo.impl.aggregation.DiskUse;
+import com.github.fakemongo.impl.aggregation.Group;
 import com.github.fakemongo.junit.FongoRule;
 import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
 import com.mongodb.MongoException;
 import com.mongodb.util.MyAsserts;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import org.assertj.core.api.Assertions;
 import org.junit.Assert;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -241,10 +252,9 @@ public class FongoAggregateTest {
     List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
     assertEquals(3, result.size());
 
-    // TODO : remove comment when _id can NOT be unique anymore.
-//    Assert.assertEquals(fongoRule.parseList("[ { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"scala\"} ," +
-//        " { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"java\"} ," +
-//        " { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"mongo\"}]"), result);
+    Assert.assertEquals(fongoRule.parseList("[ { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"scala\"} ," +
+        " { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"java\"} ," +
+        " { \"_id\" : 1 , \"author\" : \"william\" , \"tags\" : \"mongo\"}]"), result);
     assertEquals("william", Util.extractField(result.get(0), "author"));
     assertEquals("scala", Util.extractField(result.get(0), "tags"));
     assertEquals("william", Util.extractField(result.get(1), "author"));
@@ -554,6 +564,466 @@ public class FongoAggregateTest {
   }
 
 
+  @Test
+  public void shouldNotModifyPipelineAndSourceCollection() {
+    DBCollection collection = createTestCollection();
+    DBObject match = new BasicDBObject("$match", new BasicDBObject("myId", new BasicDBObject("$in", Util.list("p0", "p1"))));
+    DBObject group = new BasicDBObject("$group", new BasicDBObject("_id", "$myId").append("count", new BasicDBObject("$sum", 1)));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("_id", -1));
+    DBObject skip = new BasicDBObject("$skip", 0);
+    DBObject limit = new BasicDBObject("$limit", 1);
+
+    List<DBObject> first = (List<DBObject>) collection.aggregate(match, group, sort, skip, limit).getCommandResult().get("result");
+    List<DBObject> second = (List<DBObject>) collection.aggregate(match, group, sort, skip, limit).getCommandResult().get("result");
+
+    Assertions.assertThat(first).isEqualTo(fongoRule.parseList("[ { \"_id\" : \"p1\" , \"count\" : 1.0}]"));
+    Assertions.assertThat(second).isEqualTo(first);
+    assertEquals(10, collection.count());
+    assertEquals(6, collection.count(new BasicDBObject("myId", "p0")));
+  }
+
+  @Test
+  public void shouldUseIndexForLeadingMatchAndSort() {
+    DBCollection collection = createTestCollection();
+    collection.ensureIndex(new BasicDBObject("myId", 1));
+    DBObject match = new BasicDBObject("$match", new BasicDBObject("myId", "p0"));
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("date", -1));
+    DBObject skip = new BasicDBObject("$skip", 1);
+    DBObject limit = new BasicDBObject("$limit", 2);
+    DBObject project = new BasicDBObject("$project", new BasicDBObject("_id", 0).append("date", 1));
+
+    AggregationOutput output = collection.aggregate(match, sort, skip, limit, project);
+
+    List<DBObject> result = (List<DBObject>) output.getCommandResult().get("result");
+    Assertions.assertThat(result).isEqualTo(fongoRule.parseList("[ { \"date\" : 4} , { \"date\" : 3}]"));
+    assertEquals(1, FongoIndexTest.getIndex(collection, "myId_1").getLookupCount());
+  }
+
+  @Test
+  public void shouldGroupUnwindedDocumentsInOnePass() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("author", "william").append("tags", Util.list("scala", "java", "scala")).append("note", 4));
+    collection.insert(new BasicDBObject("_id", 2).append("author", "william").append("tags", Util.list("java")).append("note", 1));
+    collection.insert(new BasicDBObject("_id", 3).append("author", "jon").append("tags", Util.list("mongo")));
+    DBObject unwind = new BasicDBObject("$unwind", "$tags");
+    DBObject group = fongoRule.parseDBObject("{$group: { _id: '$author', tags: {$addToSet: '$tags'}, ids: {$addToSet: '$_id'}, " +
+        "count: {$sum: 1}, note: {$avg: '$note'}, min: {$min: '$note'}, max: {$max: '$note'}}}");
+    DBObject sort = new BasicDBObject("$sort", new BasicDBObject("_id", 1));
+
+    List<DBObject> result = (List<DBObject>) collection.aggregate(unwind, group, sort).getCommandResult().get("result");
+
+    Assertions.assertThat(result).isEqualTo(fongoRule.parseList("[ { \"_id\" : \"jon\" , \"tags\" : [ \"mongo\"] , \"ids\" : [ 3] , \"count\" : 1.0} , " +
+        "{ \"_id\" : \"william\" , \"tags\" : [ \"scala\" , \"java\"] , \"ids\" : [ 1 , 2] , \"count\" : 4.0 , \"note\" : 3.25 , \"min\" : 1 , \"max\" : 4}]"));
+  }
+
+  @Test
+  public void shouldGroupInParallelLikeSequentially() {
+    DBCollection collection = fongoRule.newCollection();
+    List<DBObject> objects = new ArrayList<DBObject>();
+    for (int i = 0; i < Group.PARALLEL_THRESHOLD * 2; i++) {
+      objects.add(new BasicDBObject("_id", i).append("key", (i * 7) % 101).append("value", i % 3 == 0 ? i * 0.1 : i).append("name", "n" + i % 13));
+    }
+    collection.insert(objects);
+    DBObject group = fongoRule.parseDBObject("{$group: { _id: '$key', sum: {$sum: '$value'}, avg: {$avg: '$value'}, min: {$min: '$name'}, " +
+        "max: {$max: '$value'}, first: {$first: '$_id'}, last: {$last: '$_id'}, names: {$addToSet: '$name'}, values: {$push: '$value'}}}");
+
+    int parallelism = Group.INSTANCE.getParallelism();
+    try {
+      Group.INSTANCE.setParallelism(1);
+      List<DBObject> sequential = (List<DBObject>) collection.aggregate(group).getCommandResult().get("result");
+      Group.INSTANCE.setParallelism(4);
+      List<DBObject> parallel = (List<DBObject>) collection.aggregate(group).getCommandResult().get("result");
+
+      assertEquals(101, sequential.size());
+      Assertions.assertThat(parallel).isEqualTo(sequential);
+      assertEquals(sequential.toString(), parallel.toString());
+    } finally {
+      Group.INSTANCE.setParallelism(parallelism);
+    }
+  }
+
+  @Test
+  public void shouldSpillSortAndGroupToDiskWithAllowDiskUse() {
+    DBCollection collection = fongoRule.newCollection();
+    List<DBObject> objects = new ArrayList<DBObject>();
+    for (int i = 0; i < 2000; i++) {
+      objects.add(new BasicDBObject("_id", i).append("key", (i * 7) % 101).append("value", i % 3 == 0 ? i * 0.5 : i).append("name", "n" + i % 13));
+    }
+    collection.insert(objects);
+    List<DBObject> pipeline = fongoRule.parseList("[{$sort: {name: -1, value: 1}}, {$group: { _id: '$key', sum: {$sum: '$value'}, avg: {$avg: '$value'}, " +
+        "min: {$min: '$name'}, max: {$max: '$value'}, first: {$first: '$_id'}, last: {$last: '$_id'}, names: {$addToSet: '$name'}, " +
+        "count: {$sum: 1}}}, {$sort: {_id: 1}}]");
+    List<DBObject> sortPipeline = pipeline.subList(0, 1);
+
+    long memoryLimit = DiskUse.getDefaultMemoryLimit();
+    long bytesSpilled = DiskUse.getTotalBytesSpilled();
+    try {
+      DiskUse.setDefaultMemoryLimit(10000);
+      List<DBObject> inMemory = aggregate(collection, pipeline, false);
+      List<DBObject> sortedInMemory = aggregate(collection, sortPipeline, false);
+      assertEquals(bytesSpilled, DiskUse.getTotalBytesSpilled());
+
+      List<DBObject> onDisk = aggregate(collection, pipeline, true);
+      List<DBObject> sortedOnDisk = aggregate(collection, sortPipeline, true);
+
+      assertEquals(101, onDisk.size());
+      Assertions.assertThat(onDisk).isEqualTo(inMemory);
+      Assertions.assertThat(sortedOnDisk).isEqualTo(sortedInMemory);
+      assertTrue(DiskUse.getTotalBytesSpilled() > bytesSpilled);
+    } finally {
+      DiskUse.setDefaultMemoryLimit(memoryLimit);
+    }
+  }
+
+  @Test
+  public void shouldKeepOnlyTopDocumentsForSortAndLimit() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 200; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("tags", Util.list(i % 7, (i * 3) % 11)));
+    }
+    List<DBObject> sorted = aggregate(collection, fongoRule.parseList("[{$unwind: '$tags'}, {$sort: {tags: -1}}, {$project: {tags: 1}}]"), false);
+    List<DBObject> topK = aggregate(collection, fongoRule.parseList("[{$unwind: '$tags'}, {$sort: {tags: -1}}, {$skip: 5}, {$project: {tags: 1}}, {$skip: 3}, {$limit: 20}]"), false);
+
+    assertEquals(400, sorted.size());
+    Assertions.assertThat(topK).isEqualTo(sorted.subList(8, 28));
+  }
+
+  @Test
+  public void shouldReadAggregationCursorByBatch() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i % 2));
+    }
+    DB db = collection.getDB();
+    DBObject command = new BasicDBObject("aggregate", collection.getName())
+        .append("pipeline", fongoRule.parseList("[{$match: {a: 1}}, {$project: {b: '$a'}}]"))
+        .append("cursor", new BasicDBObject("batchSize", 2));
+
+    CommandResult result = db.command(command);
+    result.throwOnError();
+    DBObject cursor = (DBObject) result.get("cursor");
+    long cursorId = ((Number) cursor.get("id")).longValue();
+    assertTrue(cursorId != 0);
+    assertEquals(db.getName() + "." + collection.getName(), cursor.get("ns"));
+    assertEquals(fongoRule.parseList("[{_id: 1, b: 1}, {_id: 3, b: 1}]"), cursor.get("firstBatch"));
+    assertNull(result.get("result"));
+
+    cursor = (DBObject) db.command(new BasicDBObject("getMore", cursorId).append("batchSize", 2)).get("cursor");
+    assertEquals(cursorId, ((Number) cursor.get("id")).longValue());
+    assertEquals(fongoRule.parseList("[{_id: 5, b: 1}, {_id: 7, b: 1}]"), cursor.get("nextBatch"));
+
+    cursor = (DBObject) db.command(new BasicDBObject("getMore", cursorId)).get("cursor");
+    assertEquals(0L, ((Number) cursor.get("id")).longValue());
+    assertEquals(fongoRule.parseList("[{_id: 9, b: 1}]"), cursor.get("nextBatch"));
+
+    result = db.command(new BasicDBObject("getMore", cursorId));
+    assertEquals(false, result.ok());
+    assertEquals(43, result.get("code"));
+
+    // All the documents in the first batch : no cursor is kept.
+    command.put("cursor", new BasicDBObject());
+    cursor = (DBObject) db.command(command).get("cursor");
+    assertEquals(0L, ((Number) cursor.get("id")).longValue());
+    assertEquals(5, ((List) cursor.get("firstBatch")).size());
+  }
+
+  @Test
+  public void shouldCloseIdleAggregationCursors() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i));
+    }
+    FongoDB db = (FongoDB) collection.getDB();
+    DBObject command = new BasicDBObject("aggregate", collection.getName())
+        .append("pipeline", fongoRule.parseList("[{$sort: {_id: -1}}]"))
+        .append("cursor", new BasicDBObject("batchSize", 0));
+
+    long killedId = ((Number) ((DBObject) db.command(command).get("cursor")).get("id")).longValue();
+    CommandResult killed = db.command(new BasicDBObject("killCursors", collection.getName()).append("cursors", Util.list(killedId, 12345L)));
+    assertEquals(Util.list(killedId), killed.get("cursorsKilled"));
+    assertEquals(Util.list(12345L), killed.get("cursorsUnknown"));
+
+    long cursorId = ((Number) ((DBObject) db.command(command).get("cursor")).get("id")).longValue();
+    assertEquals(1, db.getCursorRegistry().size());
+    db.getCursorRegistry().setTimeout(0);
+    try {
+      CommandResult result = db.command(new BasicDBObject("getMore", cursorId));
+      assertEquals(false, result.ok());
+      assertEquals(43, result.get("code"));
+      assertEquals(0, db.getCursorRegistry().size());
+    } finally {
+      db.getCursorRegistry().setTimeout(CursorRegistry.DEFAULT_TIMEOUT);
+    }
+  }
+
+  @Test
+  public void shouldDeleteSpillFilesWhenReadOrWhenTheCursorIsClosed() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 2000; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("name", "n" + i % 13));
+    }
+    FongoDB db = (FongoDB) collection.getDB();
+    List<DBObject> pipeline = fongoRule.parseList("[{$group: {_id: {id: '$_id'}, name: {$first: '$name'}}}]");
+    DBObject command = new BasicDBObject("aggregate", collection.getName()).append("pipeline", pipeline)
+        .append("allowDiskUse", true).append("cursor", new BasicDBObject("batchSize", 1));
+
+    long memoryLimit = DiskUse.getDefaultMemoryLimit();
+    int files = spillFiles();
+    try {
+      DiskUse.setDefaultMemoryLimit(10000);
+      assertEquals(2000, aggregate(collection, pipeline, true).size());
+      assertEquals(files, spillFiles());
+
+      long killedId = ((Number) ((DBObject) db.command(command).get("cursor")).get("id")).longValue();
+      assertTrue(spillFiles() > files);
+      db.command(new BasicDBObject("killCursors", collection.getName()).append("cursors", Util.list(killedId)));
+      assertEquals(files, spillFiles());
+
+      db.command(command);
+      assertTrue(spillFiles() > files);
+      db.getCursorRegistry().setTimeout(0);
+      assertEquals(0, db.getCursorRegistry().size());
+      assertEquals(files, spillFiles());
+    } finally {
+      DiskUse.setDefaultMemoryLimit(memoryLimit);
+      db.getCursorRegistry().setTimeout(CursorRegistry.DEFAULT_TIMEOUT);
+    }
+  }
+
+  private static int spillFiles() {
+    String[] files = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith("fongo-aggregation-");
+      }
+    });
+    return files == null ? 0 : files.length;
+  }
+
+  @Test
+  public void shouldReplaceTargetCollectionWithOut() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 2500; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("k", i % 3).append("v", i));
+    }
+    DB db = collection.getDB();
+    DBCollection target = db.getCollection("out_target");
+    target.insert(new BasicDBObject("_id", "old"));
+    target.ensureIndex(new BasicDBObject("total", 1));
+    Set<String> names = db.getCollectionNames();
+
+    List<DBObject> result = aggregate(collection, fongoRule.parseList("[{$match: {v: {$lt: 2400}}}, {$project: {k: 1, v: 1}}, {$out: 'out_target'}]"), false);
+    assertEquals(0, result.size());
+    assertEquals(2400, target.count());
+    assertNull(target.findOne(new BasicDBObject("_id", "old")));
+    assertEquals(names, db.getCollectionNames());
+
+    result = aggregate(collection, fongoRule.parseList("[{$group: {_id: '$k', total: {$sum: '$v'}}}, {$out: 'out_target'}]"), false);
+    assertEquals(0, result.size());
+    assertEquals(3, target.count());
+    assertEquals(new BasicDBObject("_id", 0).append("total", 1042083), target.findOne(new BasicDBObject("_id", 0)));
+    assertEquals(2, db.getCollection("system.indexes").count(new BasicDBObject("ns", target.getFullName())));
+    assertEquals(1, target.find(new BasicDBObject("total", 1042083)).count());
+    assertEquals(names, db.getCollectionNames());
+  }
+
+  @Test
+  public void shouldKeepTargetCollectionWhenOutFails() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("k", i % 3));
+    }
+    DBCollection target = collection.getDB().getCollection("out_target");
+    target.insert(new BasicDBObject("_id", "old").append("k", 0));
+    target.ensureIndex(new BasicDBObject("k", 1), "k_1", true);
+
+    try {
+      aggregate(collection, fongoRule.parseList("[{$out: 'out_target'}]"), false);
+      Assert.fail("need MongoException");
+    } catch (MongoException e) {
+      assertEquals(16996, e.getCode());
+    }
+    try {
+      aggregate(collection, fongoRule.parseList("[{$out: 'out_target'}, {$limit: 1}]"), false);
+      Assert.fail("need MongoException");
+    } catch (MongoException e) {
+      assertEquals(16991, e.getCode());
+    }
+    assertEquals(fongoRule.parseList("[{_id: 'old', k: 0}]"), target.find().toArray());
+  }
+
+  @Test
+  public void shouldFuseUnwindWithGroupAndProject() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 50; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("order", new BasicDBObject("customer", "c" + (i % 4)).append("items", Util.list(i % 3, i % 5, "x"))));
+    }
+    List<DBObject> before = collection.find().toArray();
+
+    // A $skip between the stages prevents the fusion.
+    String group = "{$group: {_id: {item: '$order.items', customer: '$order.customer'}, count: {$sum: 1}, orders: {$push: '$_id'}, first: {$first: '$order'}}}";
+    String project = "{$project: {item: '$order.items', order: 1}}";
+    List<DBObject> fusedGroup = aggregate(collection, fongoRule.parseList("[{$unwind: '$order.items'}, " + group + ", {$sort: {_id: 1}}]"), false);
+    List<DBObject> copiedGroup = aggregate(collection, fongoRule.parseList("[{$unwind: '$order.items'}, {$skip: 0}, " + group + ", {$sort: {_id: 1}}]"), false);
+    List<DBObject> fusedProject = aggregate(collection, fongoRule.parseList("[{$unwind: '$order.items'}, " + project + "]"), false);
+    List<DBObject> copiedProject = aggregate(collection, fongoRule.parseList("[{$unwind: '$order.items'}, {$skip: 0}, " + project + "]"), false);
+
+    assertEquals(copiedGroup, fusedGroup);
+    assertEquals(copiedProject, fusedProject);
+    assertEquals(150, fusedProject.size());
+    assertEquals(new BasicDBObject("_id", 1).append("order", new BasicDBObject("customer", "c1").append("items", 1)).append("item", 1), fusedProject.get(3));
+    assertEquals(new BasicDBObject("customer", "c0").append("items", 0), fusedGroup.get(0).get("first"));
+    assertEquals(before, collection.find().toArray());
+  }
+
+  @Test
+  public void shouldStreamGroupsOfSortedInput() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 300; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("k", (i * 7) % 30).append("s", i % 2 == 0 ? "a" : "b").append("v", i));
+    }
+    String group = "{$group: {_id: {s: '$s', k: '$k'}, total: {$sum: '$v'}, count: {$sum: 1}, first: {$first: '$v'}}}";
+    List<DBObject> streamed = aggregate(collection, fongoRule.parseList("[{$match: {v: {$gte: 10}}}, {$sort: {k: -1, s: 1, v: 1}}, " + group + "]"), false);
+    List<DBObject> hashed = aggregate(collection, fongoRule.parseList("[{$match: {v: {$gte: 10}}}, {$sort: {v: 1}}, " + group + ", {$sort: {'_id.k': -1, '_id.s': 1}}]"), false);
+    assertEquals(30, streamed.size());
+    assertEquals(hashed, streamed);
+
+    // The first group is returned before the input is read.
+    final List<DBObject> documents = fongoRule.parseList("[{k: 1, v: 1}, {k: 1, v: 2}, {k: 2, v: 3}, {k: 3, v: 4}]");
+    final int[] read = new int[1];
+    Iterator<DBObject> input = new Iterator<DBObject>() {
+      @Override
+      public boolean hasNext() {
+        return read[0] < documents.size();
+      }
+
+      @Override
+      public DBObject next() {
+        return documents.get(read[0]++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+    Iterator<DBObject> result = Group.INSTANCE.applyOrdered(collection, input, fongoRule.parseDBObject("{$group: {_id: '$k', total: {$sum: '$v'}}}"), null, new BasicDBObject("k", 1));
+    assertEquals(new BasicDBObject("_id", 1).append("total", 3), result.next());
+    assertEquals(3, read[0]);
+    assertEquals(new BasicDBObject("_id", 2).append("total", 3), result.next());
+    assertEquals(new BasicDBObject("_id", 3).append("total", 4), result.next());
+    Assert.assertFalse(result.hasNext());
+  }
+
+  @Test
+  public void shouldLookupWithHashJoinOrIndexNestedLoop() {
+    DBCollection orders = fongoRule.newCollection();
+    DBCollection products = fongoRule.newCollection();
+    orders.insert(new BasicDBObject("_id", 1).append("sku", "a"));
+    orders.insert(new BasicDBObject("_id", 2).append("sku", Util.list("b", "c")));
+    orders.insert(new BasicDBObject("_id", 3));
+    orders.insert(new BasicDBObject("_id", 4).append("sku", "z"));
+    products.insert(new BasicDBObject("_id", 10).append("sku", "a").append("price", 5));
+    products.insert(new BasicDBObject("_id", 11).append("sku", "b").append("price", 7));
+    products.insert(new BasicDBObject("_id", 12).append("sku", "c").append("price", 1));
+    products.insert(new BasicDBObject("_id", 13).append("price", 0));
+    List<DBObject> pipeline = fongoRule.parseList("[{$lookup: {from: '" + products.getName() + "', localField: 'sku', foreignField: 'sku', as: 'products'}}, {$sort: {_id: 1}}]");
+
+    List<DBObject> hashJoin = aggregate(orders, pipeline, false);
+    assertEquals(fongoRule.parseList("[{_id: 1, sku: 'a', products: [{_id: 10, sku: 'a', price: 5}]},\n" +
+        "{_id: 2, sku: ['b', 'c'], products: [{_id: 11, sku: 'b', price: 7}, {_id: 12, sku: 'c', price: 1}]},\n" +
+        "{_id: 3, products: [{_id: 13, price: 0}]},\n" +
+        "{_id: 4, sku: 'z', products: []}]"), hashJoin);
+    DBObject lookup = (DBObject) explain(orders, pipeline).get(1).get("$lookup");
+    assertEquals("hashJoin", lookup.get("strategy"));
+
+    products.ensureIndex(new BasicDBObject("sku", 1));
+    long lookupCount = FongoIndexTest.getIndex(products, "sku_1").getLookupCount();
+    assertEquals(hashJoin, aggregate(orders, pipeline, false));
+    Assertions.assertThat(FongoIndexTest.getIndex(products, "sku_1").getLookupCount()).isGreaterThan(lookupCount);
+    lookup = (DBObject) explain(orders, pipeline).get(1).get("$lookup");
+    assertEquals("indexNestedLoop", lookup.get("strategy"));
+    assertEquals("sku_1", lookup.get("index"));
+  }
+
+  @Test
+  public void shouldReadGeoNearFirstStageNearestFirst() {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 50; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("loc", Util.list((double) (50 - i), 0D)).append("even", i % 2 == 0));
+    }
+    collection.ensureIndex(new BasicDBObject("loc", "2d"));
+
+    List<DBObject> result = aggregate(collection, fongoRule.parseList("[{$geoNear: {near: [50, 0], distanceField: 'dist.calculated', query: {even: true}, includeLocs: 'dist.loc'}}, {$project: {dist: 1}}, {$limit: 3}]"), false);
+    assertEquals(fongoRule.parseList("[{_id: 0, dist: {calculated: 0.0, loc: [50.0, 0.0]}},\n" +
+        "{_id: 2, dist: {calculated: 2.0, loc: [48.0, 0.0]}},\n" +
+        "{_id: 4, dist: {calculated: 4.0, loc: [46.0, 0.0]}}]"), result);
+
+    result = aggregate(collection, fongoRule.parseList("[{$geoNear: {near: [0, 0], distanceField: 'd', maxDistance: 3.5, num: 2}}, {$project: {d: 1}}]"), false);
+    assertEquals(fongoRule.parseList("[{_id: 49, d: 1.0}, {_id: 48, d: 2.0}]"), result);
+  }
+
+  @Test
+  public void shouldAcceptGeoNearWithAJavaListAsNear() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("loc", Util.list(0D, 0D)));
+    collection.insert(new BasicDBObject("_id", 2).append("loc", Util.list(3D, 4D)));
+    collection.ensureIndex(new BasicDBObject("loc", "2d"));
+
+    DBObject geoNear = new BasicDBObject("near", Arrays.asList(3D, 4D)).append("distanceField", "d");
+    List<DBObject> result = aggregate(collection, Arrays.<DBObject>asList(new BasicDBObject("$geoNear", geoNear), new BasicDBObject("$project", new BasicDBObject("d", 1))), false);
+    assertEquals(fongoRule.parseList("[{_id: 2, d: 0.0}, {_id: 1, d: 5.0}]"), result);
+  }
+
+  @Test
+  public void shouldSkipAfterAMatchOnId() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("a", 1));
+    collection.insert(new BasicDBObject("_id", 2).append("a", 2));
+
+    assertEquals(0, aggregate(collection, fongoRule.parseList("[{$match: {_id: 1}}, {$skip: 1}]"), false).size());
+    assertEquals(fongoRule.parseList("[{_id: 1, a: 1}]"), aggregate(collection, fongoRule.parseList("[{$match: {_id: 1}}, {$skip: 0}, {$limit: 1}]"), false));
+  }
+
+  @Test
+  public void shouldRefuseNonPositiveLimit() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("a", 1));
+
+    for (String pipeline : Arrays.asList("[{$limit: 0}]", "[{$sort: {a: 1}}, {$limit: -1}]", "[{$project: {a: 1}}, {$limit: 0}]")) {
+      try {
+        aggregate(collection, fongoRule.parseList(pipeline), false);
+        fail("should refuse " + pipeline);
+      } catch (MongoException e) {
+        assertEquals(15958, e.getCode());
+        assertTrue(e.getMessage().contains("the limit must be positive"));
+      }
+    }
+  }
+
+  @Test
+  public void shouldRefuseGeoNearAfterTheFirstStage() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("loc", Util.list(0D, 0D)));
+    collection.ensureIndex(new BasicDBObject("loc", "2d"));
+
+    exception.expect(MongoException.class);
+    exception.expectMessage("$geoNear is only valid as the first stage in a pipeline");
+    aggregate(collection, fongoRule.parseList("[{$match: {}}, {$geoNear: {near: [0, 0], distanceField: 'd'}}]"), false);
+  }
+
+  private List<DBObject> explain(DBCollection collection, List<DBObject> pipeline) {
+    CommandResult result = collection.getDB().command(new BasicDBObject("aggregate", collection.getName()).append("pipeline", pipeline).append("explain", true));
+    result.throwOnError();
+    return (List<DBObject>) result.get("stages");
+  }
+
+  private List<DBObject> aggregate(DBCollection collection, List<DBObject> pipeline, boolean allowDiskUse) {
+    CommandResult result = collection.getDB().command(new BasicDBObject("aggregate", collection.getName()).append("pipeline", pipeline).append("allowDiskUse", allowDiskUse));
+    result.throwOnError();
+    return (List<DBObject>) result.get("result");
+  }
+
   private DBCollection createTestCollection() {
     DBCollection collection = fongoRule.newCollection();
     collection.insert(new BasicDBObject("myId", "p0").append("date", 1));
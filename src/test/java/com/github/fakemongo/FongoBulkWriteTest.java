@@ -0,0 +1,132 @@
+package com.github.fakemongo;
+
+import com.github.fakemongo.junit.FongoRule;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.FongoBulkWriteException;
+import com.mongodb.FongoBulkWriteOperation;
+import com.mongodb.FongoBulkWriteResult;
+import com.mongodb.FongoDBCollection;
+import com.mongodb.WriteConcern;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class FongoBulkWriteTest {
+
+  @Rule
+  public final FongoRule fongoRule = new FongoRule(false);
+
+  @Test
+  public void testOrderedBulkWrite() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("a", 1));
+
+    FongoBulkWriteOperation bulk = ((FongoDBCollection) collection).initializeOrderedBulkOperation();
+    bulk.insert(new BasicDBObject("_id", 2).append("a", 2));
+    bulk.insert(new BasicDBObject("_id", 3).append("a", 3));
+    bulk.find(new BasicDBObject("a", new BasicDBObject("$gte", 2))).update(new BasicDBObject("$inc", new BasicDBObject("a", 10)));
+    bulk.find(new BasicDBObject("_id", 4)).upsert().updateOne(new BasicDBObject("$set", new BasicDBObject("a", 4)));
+    bulk.find(new BasicDBObject("_id", 1)).replaceOne(new BasicDBObject("b", 1));
+    bulk.find(new BasicDBObject("a", new BasicDBObject("$gte", 10))).removeOne();
+    FongoBulkWriteResult result = bulk.execute();
+
+    assertEquals(2, result.getInsertedCount());
+    assertEquals(3, result.getMatchedCount());
+    assertEquals(1, result.getRemovedCount());
+    assertEquals(1, result.getUpserts().size());
+    assertEquals(3, result.getUpserts().get(0).getIndex());
+    assertEquals(4, result.getUpserts().get(0).getId());
+    assertEquals(6, result.getResults().size());
+    assertEquals(2, result.getResults().get(2).getN());
+    assertEquals(0, result.getErrors().size());
+
+    assertEquals(3, collection.count());
+    assertEquals(new BasicDBObject("_id", 1).append("b", 1), collection.findOne(new BasicDBObject("_id", 1)));
+    assertEquals(1, collection.count(new BasicDBObject("a", new BasicDBObject("$gte", 10))));
+  }
+
+  @Test
+  public void testOrderedBulkWriteStopAtFirstError() {
+    DBCollection collection = fongoRule.newCollection();
+    FongoBulkWriteOperation bulk = ((FongoDBCollection) collection).initializeOrderedBulkOperation();
+    bulk.insert(new BasicDBObject("_id", 1));
+    bulk.insert(new BasicDBObject("_id", 1));
+    bulk.insert(new BasicDBObject("_id", 2));
+    bulk.find(new BasicDBObject("_id", 1)).remove();
+    try {
+      bulk.execute();
+      fail("need FongoBulkWriteException");
+    } catch (FongoBulkWriteException e) {
+      assertEquals(1, e.getWriteErrors().size());
+      assertEquals(1, e.getWriteErrors().get(0).getIndex());
+      assertEquals(11001, e.getWriteErrors().get(0).getCode());
+      assertEquals(1, e.getWriteResult().getInsertedCount());
+      assertNull(e.getWriteResult().getResults().get(3));
+    }
+    assertEquals(1, collection.count());
+  }
+
+  @Test
+  public void testUnorderedBulkWriteContinueAfterError() {
+    DBCollection collection = fongoRule.newCollection();
+    collection.ensureIndex(new BasicDBObject("a", 1), "a_1", true);
+    FongoBulkWriteOperation bulk = ((FongoDBCollection) collection).initializeUnorderedBulkOperation();
+    bulk.insert(new BasicDBObject("_id", 1).append("a", 1));
+    bulk.find(new BasicDBObject("_id", 2)).updateOne(new BasicDBObject("$set", new BasicDBObject("a", 1)));
+    bulk.insert(new BasicDBObject("_id", 2).append("a", 2));
+    bulk.insert(new BasicDBObject("_id", 3).append("a", 1));
+    bulk.insert(new BasicDBObject("_id", 4).append("a", 4));
+    try {
+      bulk.execute();
+      fail("need FongoBulkWriteException");
+    } catch (FongoBulkWriteException e) {
+      assertEquals(2, e.getWriteErrors().size());
+      assertEquals(1, e.getWriteErrors().get(0).getIndex());
+      assertEquals(3, e.getWriteErrors().get(1).getIndex());
+      assertEquals(3, e.getWriteResult().getInsertedCount());
+      assertNotNull(e.getWriteResult().getResults().get(4));
+    }
+    assertEquals(3, collection.count());
+    assertEquals(2, collection.findOne(new BasicDBObject("_id", 2)).get("a"));
+  }
+
+  @Test
+  public void testUnacknowledgedBulkWriteIgnoreErrors() {
+    DBCollection collection = fongoRule.newCollection();
+    FongoBulkWriteOperation bulk = ((FongoDBCollection) collection).initializeUnorderedBulkOperation();
+    bulk.insert(new BasicDBObject("_id", 1));
+    bulk.insert(new BasicDBObject("_id", 1));
+    bulk.insert(new BasicDBObject("_id", 2));
+    FongoBulkWriteResult result = bulk.execute(WriteConcern.UNACKNOWLEDGED);
+    assertEquals(2, result.getInsertedCount());
+    assertEquals(0, result.getErrors().size());
+    assertEquals(2, collection.count());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testBulkWriteExecuteOnlyOnce() {
+    DBCollection collection = fongoRule.newCollection();
+    FongoBulkWriteOperation bulk = ((FongoDBCollection) collection).initializeOrderedBulkOperation();
+    bulk.insert(new BasicDBObject("_id", 1));
+    bulk.execute();
+    bulk.execute();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBulkUpdateWithoutOperatorIsRejected() {
+    DBCollection collection = fongoRule.newCollection();
+    FongoBulkWriteOperation bulk = ((FongoDBCollection) collection).initializeOrderedBulkOperation();
+    bulk.find(new BasicDBObject("_id", 1)).update(new BasicDBObject("$set", new BasicDBObject("a", 1)).append("b", 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBulkUpdateOneWithoutOperatorIsRejected() {
+    DBCollection collection = fongoRule.newCollection();
+    FongoBulkWriteOperation bulk = ((FongoDBCollection) collection).initializeOrderedBulkOperation();
+    bulk.find(new BasicDBObject("_id", 1)).updateOne(new BasicDBObject("a", 1));
+  }
+}
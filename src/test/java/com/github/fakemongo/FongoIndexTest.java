@@ -668,6 +668,180 @@ public class FongoIndexTest {
     assertEquals(0, index.size());
   }
 
+  @Test
+  public void testCoveredQueryUseOnlyIndexKeys() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.ensureIndex(new BasicDBObject("userId", 1).append("ts", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("userId", 1).append("ts", 10).append("payload", "big"));
+    collection.insert(new BasicDBObject("_id", 2).append("userId", 2).append("ts", 20).append("payload", "big"));
+    collection.insert(new BasicDBObject("_id", 3).append("userId", 1).append("ts", 30).append("payload", "big"));
+
+    IndexAbstract index = getIndex(collection, "userId_1_ts_1");
+    DBObject query = new BasicDBObject("userId", 1).append("ts", new BasicDBObject("$gte", 10));
+    DBObject projection = new BasicDBObject("userId", 1).append("ts", 1).append("_id", 0);
+    List<DBObject> result = collection.find(query, projection).toArray();
+
+    assertEquals(Arrays.<DBObject>asList(
+        new BasicDBObject("userId", 1).append("ts", 10),
+        new BasicDBObject("userId", 1).append("ts", 30)), result);
+    assertEquals(1, index.getLookupCount());
+  }
+
+  @Test
+  public void testExplainCoveredQueryIsIndexOnly() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.ensureIndex(new BasicDBObject("userId", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("userId", 1).append("payload", "big"));
+    collection.insert(new BasicDBObject("_id", 2).append("userId", 2).append("payload", "big"));
+
+    DBObject explain = collection.find(new BasicDBObject("userId", 1), new BasicDBObject("userId", 1).append("_id", 0)).explain();
+    assertEquals("BtreeCursor userId_1", explain.get("cursor"));
+    assertEquals(true, explain.get("indexOnly"));
+    assertEquals(1, explain.get("n"));
+    assertEquals(0, explain.get("nscannedObjects"));
+
+    explain = collection.find(new BasicDBObject("userId", 1), new BasicDBObject("userId", 1).append("payload", 1)).explain();
+    assertEquals("BtreeCursor userId_1", explain.get("cursor"));
+    assertEquals(false, explain.get("indexOnly"));
+
+    explain = collection.find(new BasicDBObject("payload", "big")).explain();
+    assertEquals("BasicCursor", explain.get("cursor"));
+    assertEquals(false, explain.get("indexOnly"));
+    assertEquals(2, explain.get("n"));
+  }
+
+  @Test
+  public void testExplainQueryOnLeadingFieldsOfIndexIsIndexOnly() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.ensureIndex(new BasicDBObject("userId", 1).append("ts", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("userId", 1).append("ts", 20).append("payload", "big"));
+    collection.insert(new BasicDBObject("_id", 2).append("userId", 2).append("ts", 10).append("payload", "big"));
+    collection.insert(new BasicDBObject("_id", 3).append("userId", 1).append("ts", 10).append("payload", "big"));
+
+    DBObject query = new BasicDBObject("userId", 1);
+    DBObject projection = new BasicDBObject("userId", 1).append("ts", 1).append("_id", 0);
+    List<DBObject> result = collection.find(query, projection).toArray();
+    assertEquals(Arrays.<DBObject>asList(
+        new BasicDBObject("userId", 1).append("ts", 10),
+        new BasicDBObject("userId", 1).append("ts", 20)), result);
+
+    DBObject explain = collection.find(query, projection).explain();
+    assertEquals("BtreeCursor userId_1_ts_1", explain.get("cursor"));
+    assertEquals(true, explain.get("indexOnly"));
+    assertEquals(2, explain.get("n"));
+    assertEquals(0, explain.get("nscannedObjects"));
+  }
+
+  @Test
+  public void testQueryOnLeadingFieldsFindsObjectsWithoutTheOtherFields() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.ensureIndex(new BasicDBObject("userId", 1).append("ts", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("userId", 1).append("ts", 5));
+    collection.insert(new BasicDBObject("_id", 2).append("userId", 1));
+
+    DBObject query = new BasicDBObject("userId", 1);
+    DBObject projection = new BasicDBObject("userId", 1).append("_id", 0);
+    assertEquals(Arrays.<DBObject>asList(new BasicDBObject("userId", 1), new BasicDBObject("userId", 1)), collection.find(query, projection).toArray());
+    assertEquals(false, collection.find(query, projection).explain().get("indexOnly"));
+  }
+
+  @Test
+  public void testCountUseOnlyIndex() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.ensureIndex(new BasicDBObject("a", 1));
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i % 50));
+    }
+    IndexAbstract index = getIndex(collection, "a_1");
+
+    assertEquals(2, collection.count(new BasicDBObject("a", 10)));
+    assertEquals(20, collection.count(new BasicDBObject("a", new BasicDBObject("$gte", 10).append("$lt", 20))));
+    assertEquals(18, collection.count(new BasicDBObject("a", new BasicDBObject("$gt", 10).append("$lte", 19))));
+    assertEquals(0, collection.count(new BasicDBObject("a", new BasicDBObject("$gt", 20).append("$lt", 10))));
+    assertEquals(78, collection.count(new BasicDBObject("a", new BasicDBObject("$gte", 11))));
+    assertEquals(5, index.getLookupCount());
+    assertEquals(100, collection.count());
+    assertEquals(5, collection.getCount(new BasicDBObject("a", new BasicDBObject("$lt", 10)), null, 5, 0));
+    assertEquals(3, collection.getCount(new BasicDBObject("a", new BasicDBObject("$lt", 10)), null, 0, 17));
+  }
+
+  @Test
+  public void testCountUseDescendingIndex() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.ensureIndex(new BasicDBObject("a", -1));
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i));
+    }
+
+    assertEquals(10, collection.count(new BasicDBObject("a", new BasicDBObject("$gte", 10).append("$lt", 20))));
+    assertEquals(89, collection.count(new BasicDBObject("a", new BasicDBObject("$gt", 10))));
+    assertEquals(1, collection.count(new BasicDBObject("a", 42)));
+  }
+
+  @Test
+  public void testCountMultiKeyIndex() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.ensureIndex(new BasicDBObject("a", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("a", 5));
+    collection.insert(new BasicDBObject("_id", 2).append("a", Arrays.asList(1, 15)));
+    collection.insert(new BasicDBObject("_id", 3).append("a", 30));
+
+    assertEquals(2, collection.count(new BasicDBObject("a", new BasicDBObject("$gt", 10))));
+    assertEquals(1, collection.count(new BasicDBObject("a", 15)));
+    assertEquals(true, collection.find(new BasicDBObject("a", 15)).explain().get("isMultiKey"));
+  }
+
+  @Test
+  public void testDistinctUseIndexKeys() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.ensureIndex(new BasicDBObject("a", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("a", 3));
+    collection.insert(new BasicDBObject("_id", 2).append("a", 1));
+    collection.insert(new BasicDBObject("_id", 3).append("a", 2));
+    collection.insert(new BasicDBObject("_id", 4).append("a", 1));
+    collection.insert(new BasicDBObject("_id", 5).append("b", 1));
+    IndexAbstract index = getIndex(collection, "a_1");
+
+    assertEquals(Arrays.asList(1, 2, 3), collection.distinct("a"));
+    assertEquals(Arrays.asList(2, 3), collection.distinct("a", new BasicDBObject("a", new BasicDBObject("$gt", 1))));
+    assertEquals(2, index.getLookupCount());
+
+    // Not answerable by the index.
+    assertEquals(Arrays.asList(1), collection.distinct("a", new BasicDBObject("_id", new BasicDBObject("$gt", 3))));
+  }
+
+  @Test
+  public void testDistinctUseMultiKeyIndex() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.ensureIndex(new BasicDBObject("a", -1));
+    collection.insert(new BasicDBObject("_id", 1).append("a", Arrays.asList(1, 2)));
+    collection.insert(new BasicDBObject("_id", 2).append("a", 3));
+    collection.insert(new BasicDBObject("_id", 3).append("a", Arrays.asList(2, 4)));
+
+    List distinct = collection.distinct("a");
+    assertEquals(4, distinct.size());
+    assertTrue(distinct.containsAll(Arrays.asList(1, 2, 3, 4)));
+    assertEquals(1, getIndex(collection, "a_-1").getLookupCount());
+  }
+
+  @Test
+  public void testFindAndModifyWalkSortIndex() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.ensureIndex(new BasicDBObject("priority", 1));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("priority", (i * 7) % 10).append("state", "new"));
+    }
+    IndexAbstract index = getIndex(collection, "priority_1");
+
+    DBObject query = new BasicDBObject("state", "new");
+    DBObject update = new BasicDBObject("$set", new BasicDBObject("state", "taken"));
+    assertEquals(0, collection.findAndModify(query, null, new BasicDBObject("priority", 1), false, update, true, false).get("priority"));
+    assertEquals(1, collection.findAndModify(query, null, new BasicDBObject("priority", 1), false, update, true, false).get("priority"));
+    assertEquals(9, collection.findAndModify(query, null, new BasicDBObject("priority", -1), false, update, true, false).get("priority"));
+    assertEquals(3, index.getLookupCount());
+    assertEquals(3, collection.count(new BasicDBObject("state", "taken")));
+  }
+
   static IndexAbstract getIndex(DBCollection collection, String name) {
     FongoDBCollection fongoDBCollection = (FongoDBCollection) collection;
 
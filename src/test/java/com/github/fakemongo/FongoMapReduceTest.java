@@ -1,5 +1,6 @@
 package com.github.fakemongo;
 
+import com.github.fakemongo.impl.MapReduce;
 import com.github.fakemongo.junit.FongoRule;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
@@ -7,6 +8,7 @@ import com.mongodb.DBObject;
 import com.mongodb.MapReduceCommand;
 import com.mongodb.MapReduceOutput;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import static org.junit.Assert.assertEquals;
 import org.junit.Rule;
@@ -121,6 +123,122 @@ public class FongoMapReduceTest {
     assertEquals(fongoRule.parse("[{ \"_id\" : \"www.google.com\" , \"value\" : { \"count\" : 2.0}}, { \"_id\" : \"www.no-fucking-idea.com\" , \"value\" : { \"count\" : 3.0}}]"), output.results());
   }
 
+  @Test
+  public void testMapReduceReadsDocumentsWithoutSerialization() {
+    DBCollection coll = fongoRule.newCollection();
+    fongoRule.insertJSON(coll, "[{_id: 1, author: {name: \"bob\"}, tags: [\"a\", \"b\"], views: 3},\n" +
+        " {_id: 2, author: {name: \"alice\"}, tags: [\"b\"], views: 5},\n" +
+        " {_id: 3, author: {name: \"bob\"}, tags: [], views: 1}]");
+
+    String map = "function() {\n" +
+        "    this.views = this.views * 2;\n" +
+        "    for (var i = 0; i < this.tags.length; i++) {\n" +
+        "        emit(this.tags[i], {authors: [this.author.name], views: this.views});\n" +
+        "    }\n" +
+        "}";
+    String reduce = "function(key, values) {\n" +
+        "    var result = {authors: [], views: 0};\n" +
+        "    values.forEach(function(v) { result.authors = result.authors.concat(v.authors); result.views += v.views; });\n" +
+        "    return result;\n" +
+        "}";
+    MapReduceOutput output = coll.mapReduce(map, reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject());
+
+    assertEquals(fongoRule.parse("[{_id: \"a\", value: {authors: [\"bob\"], views: 6.0}}, {_id: \"b\", value: {authors: [\"bob\", \"alice\"], views: 16.0}}]"), output.results());
+    // The map function doesn't change the documents.
+    assertEquals(fongoRule.parseDBObject("{_id: 1, author: {name: \"bob\"}, tags: [\"a\", \"b\"], views: 3}"), coll.findOne(new BasicDBObject("_id", 1)));
+  }
+
+  @Test
+  public void testMapReduceInParallelGivesTheSequentialResult() {
+    DBCollection coll = fongoRule.newCollection();
+    List<DBObject> objects = new ArrayList<DBObject>();
+    for (int i = 0; i < MapReduce.PARALLEL_THRESHOLD + 500; i++) {
+      objects.add(new BasicDBObject("_id", i).append("k", i % 37).append("v", i * 0.1));
+    }
+    coll.insert(objects);
+    String map = "function() { emit(this.k, {count: 1, total: this.v, ids: [this._id]}); }";
+    String reduce = "function(key, values) {\n" +
+        "    var result = {count: 0, total: 0, ids: []};\n" +
+        "    values.forEach(function(v) { result.count += v.count; result.total += v.total; result.ids = result.ids.concat(v.ids); });\n" +
+        "    return result;\n" +
+        "}";
+
+    int parallelism = MapReduce.getParallelism();
+    try {
+      MapReduce.setParallelism(1);
+      List<DBObject> sequential = toList(coll.mapReduce(map, reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject()).results());
+      MapReduce.setParallelism(4);
+      List<DBObject> parallel = toList(coll.mapReduce(map, reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject()).results());
+
+      assertEquals(37, sequential.size());
+      assertEquals(sequential, parallel);
+      // The keys keep their type.
+      assertEquals(0.0, sequential.get(0).get("_id"));
+    } finally {
+      MapReduce.setParallelism(parallelism);
+    }
+  }
+
+  @Test
+  public void testMapReduceReducesTheValuesOfAKeyDuringTheMap() {
+    DBCollection coll = fongoRule.newCollection();
+    List<DBObject> objects = new ArrayList<DBObject>();
+    for (int i = 0; i < 1000; i++) {
+      objects.add(new BasicDBObject("_id", i).append("k", i % 3));
+    }
+    coll.insert(objects);
+    String map = "function() { emit(this.k, {count: 1, total: this._id}); }";
+    String reduce = "function(key, values) {\n" +
+        "    var result = {count: 0, total: 0, reduced: values.length};\n" +
+        "    values.forEach(function(v) { result.count += v.count; result.total += v.total; });\n" +
+        "    return result;\n" +
+        "}";
+
+    int reduceThreshold = MapReduce.getReduceThreshold();
+    try {
+      MapReduce.setReduceThreshold(10);
+      // Each reduce during the map gets 10 values : the previous result and 9 new values.
+      List<DBObject> results = toList(coll.mapReduce(map, reduce, null, MapReduceCommand.OutputType.INLINE, new BasicDBObject()).results());
+
+      assertEquals(fongoRule.parseList("[{_id: 0.0, value: {count: 334.0, total: 166833.0, reduced: 1.0}},\n" +
+          "{_id: 1.0, value: {count: 333.0, total: 166167.0, reduced: 9.0}},\n" +
+          "{_id: 2.0, value: {count: 333.0, total: 166500.0, reduced: 9.0}}]"), results);
+    } finally {
+      MapReduce.setReduceThreshold(reduceThreshold);
+    }
+  }
+
+  @Test
+  public void testMapReduceOutReduceCombinesWithTheExistingResults() {
+    DBCollection coll = fongoRule.newCollection();
+    List<DBObject> objects = new ArrayList<DBObject>();
+    for (int i = 0; i < 2500; i++) {
+      objects.add(new BasicDBObject("_id", i).append("k", "key" + (i % 1200)).append("v", 1));
+    }
+    coll.insert(objects);
+    String map = "function() { emit(this.k, this.v); }";
+    String reduce = "function(key, values) { return Array.sum(values); }";
+
+    // Hourly rollup : only the new documents are read.
+    coll.mapReduce(new MapReduceCommand(coll, map, reduce, "rollup", MapReduceCommand.OutputType.REDUCE, new BasicDBObject("_id", new BasicDBObject("$lt", 1000))));
+    coll.mapReduce(new MapReduceCommand(coll, map, reduce, "rollup", MapReduceCommand.OutputType.REDUCE, new BasicDBObject("_id", new BasicDBObject("$gte", 1000))));
+
+    DBCollection rollup = fongoRule.newCollection("rollup");
+    assertEquals(1200, rollup.count());
+    assertEquals(fongoRule.parseDBObject("{_id: \"key0\", value: 3.0}"), rollup.findOne(new BasicDBObject("_id", "key0")));
+    assertEquals(fongoRule.parseDBObject("{_id: \"key999\", value: 2.0}"), rollup.findOne(new BasicDBObject("_id", "key999")));
+    assertEquals(fongoRule.parseDBObject("{_id: \"key1100\", value: 2.0}"), rollup.findOne(new BasicDBObject("_id", "key1100")));
+    assertEquals(fongoRule.parseDBObject("{_id: \"key1199\", value: 2.0}"), rollup.findOne(new BasicDBObject("_id", "key1199")));
+  }
+
+  private static List<DBObject> toList(Iterable<DBObject> results) {
+    List<DBObject> list = new ArrayList<DBObject>();
+    for (DBObject result : results) {
+      list.add(result);
+    }
+    return list;
+  }
+
   @Test
   public void testMapReduceMapInError() {
     ExpectedMongoException.expectCommandFailure(exception, 16722);
@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import static org.assertj.core.api.Assertions.assertThat;
 import org.assertj.core.data.MapEntry;
@@ -898,6 +899,27 @@ public class FongoTest {
     assertEquals(null, collection.findOne());
   }
 
+  @Test
+  public void testFindAndModifyResultIsACopyOfTheStoredDocument() {
+    DBCollection collection = newCollection();
+    collection.insert(new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", 1)));
+    collection.insert(new BasicDBObject("_id", 2).append("a", new BasicDBObject("b", 1)));
+    DBObject fields = new BasicDBObject("a", 1);
+
+    DBObject result = collection.findAndModify(new BasicDBObject("_id", 1), fields, null, false, new BasicDBObject("$inc", new BasicDBObject("c", 1)), true, false);
+    ((DBObject) result.get("a")).put("b", "new");
+    result = collection.findAndModify(new BasicDBObject("_id", 1), fields, null, false, new BasicDBObject("$inc", new BasicDBObject("c", 1)), false, false);
+    ((DBObject) result.get("a")).put("b", "old");
+    assertEquals(new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", 1)).append("c", 2), collection.findOne(new BasicDBObject("_id", 1)));
+
+    DBObject shared = new BasicDBObject("b", 2);
+    collection.update(new BasicDBObject(), new BasicDBObject("$set", new BasicDBObject("a", shared)), false, true);
+    shared.put("b", "caller");
+    result = collection.findAndModify(new BasicDBObject("_id", 1), null, null, true, null, false, false);
+    ((DBObject) result.get("a")).put("b", "removed");
+    assertEquals(new BasicDBObject("_id", 2).append("a", new BasicDBObject("b", 2)), collection.findOne(new BasicDBObject("_id", 2)));
+  }
+
   @Test
   public void testRemove() {
     DBCollection collection = newCollection();
@@ -1000,6 +1022,41 @@ public class FongoTest {
     assertEquals(1, collection.count());
   }
 
+  @Test
+  public void testInsertBatchDuplicateInsideBatchThrows() {
+    DBCollection collection = newCollection();
+    collection.ensureIndex(new BasicDBObject("a", 1), "a_1", true);
+    try {
+      collection.insert(Arrays.<DBObject>asList(
+          new BasicDBObject("_id", 1).append("a", 1),
+          new BasicDBObject("_id", 2).append("a", 2),
+          new BasicDBObject("_id", 3).append("a", 1),
+          new BasicDBObject("_id", 4).append("a", 4)));
+      fail("need MongoException on duplicate key.");
+    } catch (MongoException.DuplicateKey me) {
+      assertEquals(11001, me.getCode());
+    }
+    // Objects before the duplicate are inserted.
+    assertEquals(2, collection.count());
+    assertEquals(2, collection.count(new BasicDBObject("a", new BasicDBObject("$gte", 1))));
+  }
+
+  @Test
+  public void testInsertBatchDuplicateIgnored() {
+    DBCollection collection = newCollection();
+    collection.getDB().getMongo().setWriteConcern(WriteConcern.UNACKNOWLEDGED);
+    collection.insert(new BasicDBObject("_id", 2));
+    collection.insert(Arrays.<DBObject>asList(
+        new BasicDBObject("_id", 1),
+        new BasicDBObject("_id", 2).append("a", 1),
+        new BasicDBObject("_id", 3),
+        new BasicDBObject("_id", 1).append("a", 1),
+        new BasicDBObject("b", 1)));
+    assertEquals(4, collection.count());
+    assertEquals(0, collection.count(new BasicDBObject("a", 1)));
+    assertEquals("_id", collection.findOne(new BasicDBObject("b", 1)).keySet().iterator().next());
+  }
+
   @Test
   public void testSortByEmbeddedKey() {
     DBCollection collection = newCollection();
@@ -1383,6 +1440,37 @@ public class FongoTest {
     }
   }
 
+  @Test(timeout = 16000)
+  public void testMultiThreadFindAndModifyClaimsEachDocumentOnce() throws Exception {
+    final DBCollection collection = newCollection();
+    collection.ensureIndex(new BasicDBObject("priority", 1));
+    int size = 1000;
+    for (int i = 0; i < size; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("priority", (i * 31) % size).append("state", "new"));
+    }
+
+    int workers = 8;
+    final AtomicInteger claimed = new AtomicInteger();
+    final CountDownLatch lockDone = new CountDownLatch(workers);
+    for (int w = 0; w < workers; w++) {
+      new Thread() {
+        public void run() {
+          DBObject query = new BasicDBObject("state", "new");
+          DBObject sort = new BasicDBObject("priority", 1);
+          DBObject update = new BasicDBObject("$set", new BasicDBObject("state", "taken")).append("$inc", new BasicDBObject("claims", 1));
+          while (collection.findAndModify(query, null, sort, false, update, true, false) != null) {
+            claimed.incrementAndGet();
+          }
+          lockDone.countDown();
+        }
+      }.start();
+    }
+
+    assertTrue("Too long :-(", lockDone.await(15, TimeUnit.SECONDS));
+    assertEquals(size, claimed.get());
+    assertEquals(size, collection.count(new BasicDBObject("state", "taken").append("claims", 1)));
+  }
+
   // Don't know why, but request by _id only return document event if limit is set
   @Test
   public void testFindLimit0ById() throws Exception {
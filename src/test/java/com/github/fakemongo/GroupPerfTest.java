@@ -0,0 +1,66 @@
+package com.github.fakemongo;
+
+import ch.qos.logback.classic.Level;
+import com.github.fakemongo.impl.aggregation.Group;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Aggregation benchmark : $group of a large collection, from 1 thread to the number of processors.
+ */
+public class GroupPerfTest {
+  private static final int SIZE = 100000;
+
+  public static void main(String[] args) throws Exception {
+    // Desactivate logback
+    ch.qos.logback.classic.Logger log = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(FongoDBCollection.class);
+    log.setLevel(Level.ERROR);
+    log = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Group.class);
+    log.setLevel(Level.ERROR);
+
+    Fongo fongo = new Fongo("fongo");
+    DB db = fongo.getDB("db");
+    DBCollection collection = db.getCollection("events");
+    for (int k = 0; k < SIZE; k += 10000) {
+      List<DBObject> objects = new ArrayList<DBObject>(10000);
+      for (int i = k; i < k + 10000; i++) {
+        objects.add(new BasicDBObject("_id", i).append("tenant", "tenant" + (i % 1000)).append("kind", i % 7).append("value", i * 0.5));
+      }
+      collection.insert(objects);
+    }
+    DBObject group = new BasicDBObject("$group", new BasicDBObject("_id", new BasicDBObject("tenant", "$tenant").append("kind", "$kind"))
+        .append("total", new BasicDBObject("$sum", "$value"))
+        .append("avg", new BasicDBObject("$avg", "$value"))
+        .append("max", new BasicDBObject("$max", "$value"))
+        .append("count", new BasicDBObject("$sum", 1)));
+
+    int processors = Runtime.getRuntime().availableProcessors();
+    System.out.println("Warming jvm");
+    for (int i = 0; i < 3; i++) {
+      doit(collection, group, processors);
+    }
+    System.out.println("Warming jvm done.");
+    for (int threads = 1; threads <= Math.max(4, processors); threads *= 2) {
+      long took = Long.MAX_VALUE;
+      int groups = 0;
+      for (int i = 0; i < 5; i++) {
+        long startTime = System.currentTimeMillis();
+        groups = doit(collection, group, threads);
+        took = Math.min(took, System.currentTimeMillis() - startTime);
+      }
+      System.out.println(threads + " threads : " + SIZE + " documents in " + groups + " groups in " + took + " ms");
+    }
+    db.dropDatabase();
+  }
+
+  public static int doit(DBCollection collection, DBObject group, int threads) {
+    Group.INSTANCE.setParallelism(threads);
+    return ((List) collection.aggregate(group).getCommandResult().get("result")).size();
+  }
+}
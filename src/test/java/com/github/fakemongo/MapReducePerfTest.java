@@ -0,0 +1,71 @@
+package com.github.fakemongo;
+
+import ch.qos.logback.classic.Level;
+import com.github.fakemongo.impl.MapReduce;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import com.mongodb.MapReduceCommand;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map-reduce benchmark : sum by key of a large collection, from 1 thread to the number of processors.
+ */
+public class MapReducePerfTest {
+  private static final int SIZE = 100000;
+
+  private static final String MAP = "function() { emit(this.tenant, {count: 1, total: this.value, max: this.stats.max}); }";
+
+  private static final String REDUCE = "function(key, values) {\n" +
+      "  var result = {count: 0, total: 0, max: 0};\n" +
+      "  values.forEach(function(v) { result.count += v.count; result.total += v.total; result.max = Math.max(result.max, v.max); });\n" +
+      "  return result;\n" +
+      "}";
+
+  public static void main(String[] args) throws Exception {
+    // Desactivate logback
+    ch.qos.logback.classic.Logger log = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(FongoDBCollection.class);
+    log.setLevel(Level.ERROR);
+    log = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(MapReduce.class);
+    log.setLevel(Level.ERROR);
+
+    Fongo fongo = new Fongo("fongo");
+    DB db = fongo.getDB("db");
+    DBCollection collection = db.getCollection("events");
+    for (int k = 0; k < SIZE; k += 10000) {
+      List<DBObject> objects = new ArrayList<DBObject>(10000);
+      for (int i = k; i < k + 10000; i++) {
+        objects.add(new BasicDBObject("_id", i).append("tenant", "tenant" + (i % 1000)).append("value", i * 0.5)
+            .append("stats", new BasicDBObject("min", i % 10).append("max", i % 100)).append("label", "event number " + i));
+      }
+      collection.insert(objects);
+    }
+
+    int processors = Runtime.getRuntime().availableProcessors();
+    System.out.println("Warming jvm");
+    for (int i = 0; i < 3; i++) {
+      doit(collection, processors);
+    }
+    System.out.println("Warming jvm done.");
+    for (int threads = 1; threads <= Math.max(4, processors); threads *= 2) {
+      long took = Long.MAX_VALUE;
+      int keys = 0;
+      for (int i = 0; i < 5; i++) {
+        long startTime = System.currentTimeMillis();
+        keys = doit(collection, threads);
+        took = Math.min(took, System.currentTimeMillis() - startTime);
+      }
+      System.out.println(threads + " threads : " + SIZE + " documents in " + keys + " keys in " + took + " ms");
+    }
+    db.dropDatabase();
+  }
+
+  public static int doit(DBCollection collection, int threads) {
+    MapReduce.setParallelism(threads);
+    return collection.mapReduce(MAP, REDUCE, "events_by_tenant", MapReduceCommand.OutputType.REPLACE, null).getOutputCollection().find().count();
+  }
+}
@@ -4,9 +4,11 @@ import com.github.fakemongo.FongoException;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBObject;
+import java.util.List;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 public class UpdateEngineTest {
@@ -299,4 +301,89 @@ public class UpdateEngineTest {
   }
   
   
+  @Test
+  public void testApplyUpdateCopyOnlyModifiedPaths() {
+    UpdateEngine updateEngine = new UpdateEngine();
+    DBObject untouched = new BasicDBObject("x", 1);
+    DBObject list = Util.list(new BasicDBObject("b", 1), new BasicDBObject("b", 1));
+    DBObject original = new BasicDBObject("_id", 1).append("c", new BasicDBObject("d", 1).append("e", untouched)).append("a", list).append("f", untouched);
+    DBObject update = new BasicDBObjectBuilder().push("$inc").append("c.d", 1).append("a.1.b", 1).pop()
+        .push("$push").append("g", 1).pop().get();
+
+    DBObject updated = updateEngine.applyUpdate(original, update, new BasicDBObject());
+
+    assertEquals(new BasicDBObject("_id", 1).append("c", new BasicDBObject("d", 2).append("e", new BasicDBObject("x", 1)))
+        .append("a", Util.list(new BasicDBObject("b", 1), new BasicDBObject("b", 2))).append("f", new BasicDBObject("x", 1))
+        .append("g", Util.list(1)), updated);
+    // Original not modified.
+    assertEquals(new BasicDBObject("_id", 1).append("c", new BasicDBObject("d", 1).append("e", new BasicDBObject("x", 1)))
+        .append("a", Util.list(new BasicDBObject("b", 1), new BasicDBObject("b", 1))).append("f", new BasicDBObject("x", 1)), original);
+    // Untouched values are shared.
+    assertSame(untouched, updated.get("f"));
+    assertSame(untouched, ((DBObject) updated.get("c")).get("e"));
+    assertSame(((List) list).get(0), ((List) updated.get("a")).get(0));
+  }
+
+  @Test
+  public void testApplyUpdateDoNotModifyOriginalList() {
+    UpdateEngine updateEngine = new UpdateEngine();
+    DBObject original = new BasicDBObject("a", Util.list(1, 2)).append("b", new BasicDBObject("c", 1));
+    DBObject update = new BasicDBObjectBuilder().push("$push").append("a", 3).pop()
+        .push("$rename").append("b.c", "d.e").pop().get();
+
+    DBObject updated = updateEngine.applyUpdate(original, update, new BasicDBObject());
+
+    assertEquals(new BasicDBObject("a", Util.list(1, 2, 3)).append("b", new BasicDBObject()).append("d", new BasicDBObject("e", 1)), updated);
+    assertEquals(new BasicDBObject("a", Util.list(1, 2)).append("b", new BasicDBObject("c", 1)), original);
+  }
+
+  @Test
+  public void testApplyUpdatePositionalOperator() {
+    UpdateEngine updateEngine = new UpdateEngine();
+    DBObject original = new BasicDBObject("b", Util.list(new BasicDBObject("a", 1), new BasicDBObject("a", 2)));
+    DBObject update = new BasicDBObjectBuilder().push("$set").append("b.$.c", 3).pop().get();
+
+    DBObject updated = updateEngine.applyUpdate(original, update, new BasicDBObject("b.a", 2));
+
+    assertEquals(new BasicDBObject("b", Util.list(new BasicDBObject("a", 1), new BasicDBObject("a", 2).append("c", 3))), updated);
+    assertEquals(new BasicDBObject("b", Util.list(new BasicDBObject("a", 1), new BasicDBObject("a", 2))), original);
+  }
+
+  @Test
+  public void testCompiledUpdateIsReusedForSameShape() {
+    UpdateEngine updateEngine = new UpdateEngine();
+    DBObject update1 = new BasicDBObjectBuilder().push("$set").append("a.b", 5).pop().push("$inc").append("c", 1).pop().get();
+    DBObject update2 = new BasicDBObjectBuilder().push("$set").append("a.b", 6).pop().push("$inc").append("c", 2).pop().get();
+
+    assertSame(updateEngine.compile(update1), updateEngine.compile(update2));
+    assertEquals(new BasicDBObject("c", 3).append("a", new BasicDBObject("b", 6)),
+        updateEngine.doUpdate(updateEngine.doUpdate(new BasicDBObject(), update1), update2));
+  }
+
+  @Test
+  public void testCompiledUpdateRejectsKeyWithItsParent() {
+    UpdateEngine updateEngine = new UpdateEngine();
+    DBObject update = new BasicDBObjectBuilder().push("$set").append("a", 1).pop().push("$inc").append("a.b", 1).pop().get();
+    try {
+      updateEngine.doUpdate(new BasicDBObject("a", new BasicDBObject("b", 1)), update);
+      fail("should get exception");
+    } catch (FongoException e) {
+    }
+
+    DBObject siblings = new BasicDBObjectBuilder().push("$set").append("a.b", 1).pop().push("$inc").append("a.bc", 1).pop().get();
+    assertEquals(new BasicDBObject("a", new BasicDBObject("b", 1).append("bc", 1)), updateEngine.doUpdate(new BasicDBObject(), siblings));
+  }
+
+  @Test
+  public void testCompiledUpdateCheckKeysOnce() {
+    UpdateEngine updateEngine = new UpdateEngine();
+    DBObject update = new BasicDBObjectBuilder().push("$set").append("a", 5).pop().push("$inc").append("a", 3).pop().get();
+    for (int i = 0; i < 2; i++) {
+      try {
+        updateEngine.doUpdate(new BasicDBObject("a", 1), update);
+        fail("should get exception");
+      } catch (FongoException e) {
+      }
+    }
+  }
 }